@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.usfirst.frc.team2084.neuralnetwork.Data;
+import org.usfirst.frc.team2084.neuralnetwork.Network;
+
+/**
+ * Benchmarks reading and writing the text network format with {@link Data}.
+ * Each file contains the weights of the network and a number of training
+ * samples.
+ *
+ * @author Ben Wolsieffer
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataBenchmark {
+
+    /**
+     * An output stream that throws away everything written to it, so only the
+     * cost of formatting the data is measured.
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    @Param({ "1,3,1,1", "2,4,1", "20,50,20,5", "200,200,50", "1000,1000,100" })
+    public String topology;
+
+    @Param({ "sig", "tanh", "step" })
+    public String transferFunction;
+
+    @Param({ "1000" })
+    public int samples;
+
+    private Data data;
+    private byte[] text;
+
+    @Setup
+    public void setup() throws IOException {
+        final Network network = Networks.network(topology, transferFunction);
+        final int[] sizes = network.getTopology();
+        data = new Data(network, Networks.samples(samples, sizes[0]),
+                Networks.samples(samples, sizes[sizes.length - 1]));
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        data.save(stream);
+        text = stream.toByteArray();
+    }
+
+    @Benchmark
+    public Data parse() throws Data.FormatException {
+        return new Data(new ByteArrayInputStream(text));
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        data.save(new NullOutputStream());
+    }
+}
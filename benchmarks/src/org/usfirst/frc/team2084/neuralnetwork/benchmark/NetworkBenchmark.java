@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.usfirst.frc.team2084.neuralnetwork.Network;
+
+/**
+ * Benchmarks the forward and backward passes of a {@link Network}. The
+ * topologies range from the networks in the data directory up to layers
+ * thousands of neurons wide.
+ *
+ * @author Ben Wolsieffer
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBenchmark {
+
+    /**
+     * The number of samples in each call to
+     * {@link Network#predictBatch(double[][], double[][])}.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    @Param({ "1,3,1,1", "2,4,1", "20,50,20,5", "200,200,50", "1000,2000,1000" })
+    public String topology;
+
+    @Param({ "sig", "tanh", "step", "sig_fast", "tanh_fast", "sig_lut", "tanh_lut" })
+    public String transferFunction;
+
+    @Param({ "double", "float" })
+    public String precision;
+
+    private Network network;
+    private double[] input;
+    private double[] targetOutput;
+    private double[][] batchInputs;
+    private double[][] batchOutputs;
+
+    @Setup
+    public void setup() {
+        network = Networks.network(topology, transferFunction, precision);
+        final int[] sizes = network.getTopology();
+        input = Networks.samples(1, sizes[0])[0];
+        targetOutput = Networks.samples(1, sizes[sizes.length - 1])[0];
+        batchInputs = Networks.samples(BATCH_SIZE, sizes[0]);
+        batchOutputs = new double[BATCH_SIZE][sizes[sizes.length - 1]];
+    }
+
+    @Benchmark
+    public double[] feedForward() {
+        network.feedForward(input);
+        return network.getResults();
+    }
+
+    /**
+     * Measures the outputs of a batch of samples, which can be compared to
+     * {@link #feedForward()} times the batch size.
+     */
+    @Benchmark
+    public double[][] predictBatch() {
+        network.predictBatch(batchInputs, batchOutputs);
+        return batchOutputs;
+    }
+
+    /**
+     * Measures a full training step, since back-propagation depends on the
+     * outputs calculated by the forward pass.
+     */
+    @Benchmark
+    public double backPropagation() {
+        network.feedForward(input);
+        network.backPropagation(targetOutput);
+        return network.getRecentAverageError();
+    }
+}
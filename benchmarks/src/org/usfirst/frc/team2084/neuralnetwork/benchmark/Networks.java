@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork.benchmark;
+
+import java.util.Random;
+
+import org.usfirst.frc.team2084.neuralnetwork.Network;
+import org.usfirst.frc.team2084.neuralnetwork.Precision;
+import org.usfirst.frc.team2084.neuralnetwork.TransferFunction;
+
+/**
+ * Helpers for creating the networks and samples used by the benchmarks from
+ * JMH parameters.
+ *
+ * @author Ben Wolsieffer
+ */
+final class Networks {
+
+    /**
+     * Seed for the random samples, so every run uses the same ones.
+     */
+    private static final long SEED = 2084;
+
+    private Networks() {
+    }
+
+    /**
+     * Parses a topology parameter, which is a comma separated list of layer
+     * sizes.
+     *
+     * @param topology the topology parameter
+     * @return the topology
+     */
+    static int[] topology(final String topology) {
+        final String[] sizes = topology.split(",");
+        final int[] result = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            result[i] = Integer.parseInt(sizes[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Gets the transfer function with the specified name, using the same names
+     * as the data file format.
+     *
+     * @param name the name of the transfer function
+     * @return the transfer function
+     */
+    static TransferFunction transferFunction(final String name) {
+        final TransferFunction transferFunction = TransferFunction.forName(name);
+        if (transferFunction == null) {
+            throw new IllegalArgumentException("Unrecognized transfer function: " + name);
+        }
+        return transferFunction;
+    }
+
+    /**
+     * Creates a network with a small learning rate, so repeated training on
+     * the same sample does not make the weights diverge.
+     *
+     * @param topology the topology parameter
+     * @param transferFunction the transfer function parameter
+     * @return the network
+     */
+    static Network network(final String topology, final String transferFunction) {
+        return network(topology, transferFunction, Precision.DOUBLE.toString());
+    }
+
+    /**
+     * Creates a network like {@link #network(String, String)}, with the
+     * specified weight precision.
+     *
+     * @param topology the topology parameter
+     * @param transferFunction the transfer function parameter
+     * @param precision the name of the precision, as used in the data file
+     *        format
+     * @return the network
+     */
+    static Network network(final String topology, final String transferFunction, final String precision) {
+        final Precision weightPrecision = Precision.forName(precision);
+        if (weightPrecision == null) {
+            throw new IllegalArgumentException("Unrecognized precision: " + precision);
+        }
+        return new Network(topology(topology), 0.001, 0.1, transferFunction(transferFunction), weightPrecision);
+    }
+
+    /**
+     * Creates a matrix of random values between 0 and 1.
+     *
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return the matrix
+     */
+    static double[][] samples(final int rows, final int columns) {
+        final Random random = new Random(SEED);
+        final double[][] samples = new double[rows][columns];
+        for (final double[] sample : samples) {
+            for (int i = 0; i < columns; i++) {
+                sample[i] = random.nextDouble();
+            }
+        }
+        return samples;
+    }
+}
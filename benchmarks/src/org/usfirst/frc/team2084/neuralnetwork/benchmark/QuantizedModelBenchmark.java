@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.usfirst.frc.team2084.neuralnetwork.InferenceModel;
+import org.usfirst.frc.team2084.neuralnetwork.Network;
+import org.usfirst.frc.team2084.neuralnetwork.QuantizedModel;
+
+/**
+ * Compares the predictions of a {@link QuantizedModel} to those of the
+ * {@link InferenceModel} and {@link Network} it was created from.
+ *
+ * @author Ben Wolsieffer
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuantizedModelBenchmark {
+
+    @Param({ "1,3,1,1", "2,4,1", "20,50,20,5", "200,200,50" })
+    public String topology;
+
+    @Param({ "sig", "tanh" })
+    public String transferFunction;
+
+    private Network network;
+    private InferenceModel inferenceModel;
+    private InferenceModel.Scratch inferenceScratch;
+    private QuantizedModel quantizedModel;
+    private QuantizedModel.Scratch quantizedScratch;
+    private double[] input;
+    private double[] output;
+
+    @Setup
+    public void setup() {
+        network = Networks.network(topology, transferFunction);
+        final int[] sizes = network.getTopology();
+        inferenceModel = new InferenceModel(network);
+        inferenceScratch = inferenceModel.newScratch();
+        quantizedModel = QuantizedModel.quantize(network, Networks.samples(1000, sizes[0]));
+        quantizedScratch = quantizedModel.newScratch();
+        input = Networks.samples(1, sizes[0])[0];
+        output = new double[sizes[sizes.length - 1]];
+    }
+
+    @Benchmark
+    public double[] network() {
+        network.feedForward(input);
+        return network.getResults();
+    }
+
+    @Benchmark
+    public double[] inferenceModel() {
+        inferenceModel.predict(input, output, inferenceScratch);
+        return output;
+    }
+
+    @Benchmark
+    public double[] quantizedModel() {
+        quantizedModel.predict(input, output, quantizedScratch);
+        return output;
+    }
+}
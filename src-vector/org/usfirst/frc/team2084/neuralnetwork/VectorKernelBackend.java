@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link KernelBackend} that uses the incubating Vector API to process as
+ * many values at once as the widest SIMD registers of the CPU can hold. This
+ * is only compiled by the {@code vector} Maven profile, and is loaded by
+ * {@link KernelBackend#load()} if the {@code jdk.incubator.vector} module is
+ * enabled.
+ *
+ * The dot products are summed in a different order than the scalar backend,
+ * so the results can differ in the last few bits.
+ *
+ * Float weights are loaded half a register at a time and widened to doubles
+ * before they are multiplied, so they use the same number of lanes as double
+ * weights. A {@link FloatVector} multiply-add would need the inputs as floats
+ * too, and converting them costs as much as the multiplications it saves. It
+ * would also lose the double accumulation that {@link Kernels} promises. So
+ * float weights only make the kernels faster when reading the weights from
+ * memory is the bottleneck.
+ *
+ * @author Ben Wolsieffer
+ */
+final class VectorKernelBackend implements KernelBackend {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    /**
+     * Floats with the same number of lanes as {@link #DOUBLES}, so they can be
+     * converted to and from doubles one vector at a time.
+     */
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class,
+            VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+    private static final int LANES = DOUBLES.length();
+
+    @Override
+    public double dot(final double[] weights, final int row, final double[] inputs, final int offset,
+            final int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector w = DoubleVector.fromArray(DOUBLES, weights, row + i);
+            final DoubleVector x = DoubleVector.fromArray(DOUBLES, inputs, offset + i);
+            sum = w.mul(x).add(sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += weights[row + i] * inputs[offset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public double dot(final float[] weights, final int row, final double[] inputs, final int offset,
+            final int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector w = widen(weights, row + i);
+            final DoubleVector x = DoubleVector.fromArray(DOUBLES, inputs, offset + i);
+            sum = w.mul(x).add(sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += weights[row + i] * inputs[offset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public void dot4(final double[] weights, final int row, final double[] inputs, final int offset,
+            final int stride, final int length, final double[] sums) {
+        DoubleVector sum0 = DoubleVector.zero(DOUBLES);
+        DoubleVector sum1 = sum0;
+        DoubleVector sum2 = sum0;
+        DoubleVector sum3 = sum0;
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector w = DoubleVector.fromArray(DOUBLES, weights, row + i);
+            final int input = offset + i;
+            sum0 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input)).add(sum0);
+            sum1 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + stride)).add(sum1);
+            sum2 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + 2 * stride)).add(sum2);
+            sum3 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + 3 * stride)).add(sum3);
+        }
+        sums[0] = sum0.reduceLanes(VectorOperators.ADD);
+        sums[1] = sum1.reduceLanes(VectorOperators.ADD);
+        sums[2] = sum2.reduceLanes(VectorOperators.ADD);
+        sums[3] = sum3.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            final double weight = weights[row + i];
+            final int input = offset + i;
+            sums[0] += weight * inputs[input];
+            sums[1] += weight * inputs[input + stride];
+            sums[2] += weight * inputs[input + 2 * stride];
+            sums[3] += weight * inputs[input + 3 * stride];
+        }
+    }
+
+    @Override
+    public void dot4(final float[] weights, final int row, final double[] inputs, final int offset,
+            final int stride, final int length, final double[] sums) {
+        DoubleVector sum0 = DoubleVector.zero(DOUBLES);
+        DoubleVector sum1 = sum0;
+        DoubleVector sum2 = sum0;
+        DoubleVector sum3 = sum0;
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector w = widen(weights, row + i);
+            final int input = offset + i;
+            sum0 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input)).add(sum0);
+            sum1 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + stride)).add(sum1);
+            sum2 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + 2 * stride)).add(sum2);
+            sum3 = w.mul(DoubleVector.fromArray(DOUBLES, inputs, input + 3 * stride)).add(sum3);
+        }
+        sums[0] = sum0.reduceLanes(VectorOperators.ADD);
+        sums[1] = sum1.reduceLanes(VectorOperators.ADD);
+        sums[2] = sum2.reduceLanes(VectorOperators.ADD);
+        sums[3] = sum3.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            final double weight = weights[row + i];
+            final int input = offset + i;
+            sums[0] += weight * inputs[input];
+            sums[1] += weight * inputs[input + stride];
+            sums[2] += weight * inputs[input + 2 * stride];
+            sums[3] += weight * inputs[input + 3 * stride];
+        }
+    }
+
+    @Override
+    public void axpy(final double scale, final double[] values, final int row, final double[] sums,
+            final int offset, final int length) {
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector v = DoubleVector.fromArray(DOUBLES, values, row + i);
+            final DoubleVector s = DoubleVector.fromArray(DOUBLES, sums, offset + i);
+            v.mul(scale).add(s).intoArray(sums, offset + i);
+        }
+        for (; i < length; i++) {
+            sums[offset + i] += values[row + i] * scale;
+        }
+    }
+
+    @Override
+    public void axpy(final double scale, final float[] values, final int row, final double[] sums,
+            final int offset, final int length) {
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector v = widen(values, row + i);
+            final DoubleVector s = DoubleVector.fromArray(DOUBLES, sums, offset + i);
+            v.mul(scale).add(s).intoArray(sums, offset + i);
+        }
+        for (; i < length; i++) {
+            sums[offset + i] += values[row + i] * scale;
+        }
+    }
+
+    @Override
+    public void update(final double[] weights, final double[] deltaWeights, final int row, final double[] inputs,
+            final int length, final double rate, final double momentum) {
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector x = DoubleVector.fromArray(DOUBLES, inputs, i);
+            final DoubleVector d = DoubleVector.fromArray(DOUBLES, deltaWeights, row + i);
+            final DoubleVector deltaWeight = x.mul(rate).add(d.mul(momentum));
+            deltaWeight.intoArray(deltaWeights, row + i);
+            DoubleVector.fromArray(DOUBLES, weights, row + i).add(deltaWeight).intoArray(weights, row + i);
+        }
+        for (; i < length; i++) {
+            final double deltaWeight = rate * inputs[i] + momentum * deltaWeights[row + i];
+            deltaWeights[row + i] = deltaWeight;
+            weights[row + i] += deltaWeight;
+        }
+    }
+
+    @Override
+    public void update(final float[] weights, final float[] deltaWeights, final int row, final double[] inputs,
+            final int length, final double rate, final double momentum) {
+        final int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            final DoubleVector x = DoubleVector.fromArray(DOUBLES, inputs, i);
+            final DoubleVector deltaWeight = x.mul(rate).add(widen(deltaWeights, row + i).mul(momentum));
+            narrow(deltaWeight, deltaWeights, row + i);
+            narrow(widen(weights, row + i).add(deltaWeight), weights, row + i);
+        }
+        for (; i < length; i++) {
+            final double deltaWeight = rate * inputs[i] + momentum * deltaWeights[row + i];
+            deltaWeights[row + i] = (float) deltaWeight;
+            weights[row + i] = (float) (weights[row + i] + deltaWeight);
+        }
+    }
+
+    /**
+     * Loads a vector of floats and converts them to doubles.
+     *
+     * @param values the array to load from
+     * @param offset the index of the first value
+     * @return the values as doubles
+     */
+    private static DoubleVector widen(final float[] values, final int offset) {
+        return (DoubleVector) FloatVector.fromArray(FLOATS, values, offset).convertShape(VectorOperators.F2D,
+                DOUBLES, 0);
+    }
+
+    /**
+     * Rounds a vector of doubles to floats and stores them.
+     *
+     * @param vector the values to store
+     * @param values the array to store them in
+     * @param offset the index to store the first value at
+     */
+    private static void narrow(final DoubleVector vector, final float[] values, final int offset) {
+        ((FloatVector) vector.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(values, offset);
+    }
+
+    @Override
+    public String toString() {
+        return "vector";
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * Working memory for mini-batch training. Samples are fed forward and
+ * back-propagated a tile at a time as matrix-matrix operations, and the
+ * resulting weight gradients are summed into {@link #weightGradients} until
+ * they are applied to the network. A batch only reads the weights, so several
+ * of them can accumulate gradients against the same network at once.
+ *
+ * @author Ben Wolsieffer
+ */
+final class Batch {
+
+    /**
+     * The number of samples processed together. This is small enough that a
+     * tile of activations for a wide layer still fits in cache.
+     */
+    static final int TILE_SIZE = 32;
+
+    private final int[] topology;
+    /**
+     * The outputs of each layer for each sample in the tile, one row of
+     * {@code topology[l] + 1} per sample (the last column is the bias).
+     */
+    private final double[][] outputs;
+    /**
+     * The transfer function derivatives of each layer for each sample in the
+     * tile, one row of {@code topology[l]} per sample.
+     */
+    private final double[][] derivatives;
+    /**
+     * The gradients of each layer for each sample in the tile, one row of
+     * {@code topology[l]} per sample.
+     */
+    private final double[][] gradients;
+    /**
+     * The accumulated weight gradients, with the same layout as the weights of
+     * the network.
+     */
+    final double[][] weightGradients;
+
+    /**
+     * Creates the working memory for a network with the specified topology.
+     *
+     * @param topology the topology of the network
+     */
+    Batch(final int[] topology) {
+        this.topology = topology;
+        outputs = new double[topology.length][];
+        derivatives = new double[topology.length][];
+        gradients = new double[topology.length][];
+        weightGradients = new double[topology.length - 1][];
+
+        for (int l = 0; l < topology.length; l++) {
+            final int size = topology[l];
+            final double[] layerOutputs = outputs[l] = new double[TILE_SIZE * (size + 1)];
+            for (int b = 0; b < TILE_SIZE; b++) {
+                layerOutputs[b * (size + 1) + size] = 1.0;
+            }
+            derivatives[l] = new double[TILE_SIZE * size];
+            gradients[l] = new double[TILE_SIZE * size];
+            if (l < topology.length - 1) {
+                weightGradients[l] = new double[topology[l + 1] * (size + 1)];
+            }
+        }
+    }
+
+    /**
+     * Checks that a range of samples exists and that every sample in it has
+     * the right number of values. This must be done before any of the samples
+     * are accumulated, so a bad sample does not leave the gradients of the
+     * samples before it in {@link #weightGradients}.
+     *
+     * @param topology the topology of the network
+     * @param inputs the input values of each sample
+     * @param targetOutputs the target output values of each sample
+     * @param from the index of the first sample (inclusive)
+     * @param to the index of the last sample (exclusive)
+     */
+    static void checkSamples(final int[] topology, final double[][] inputs, final double[][] targetOutputs,
+            final int from, final int to) {
+        if (from < 0 || to > inputs.length || to > targetOutputs.length) {
+            throw new IllegalArgumentException("The range of samples is out of bounds.");
+        }
+        final int inputSize = topology[0];
+        final int outputSize = topology[topology.length - 1];
+        for (int s = from; s < to; s++) {
+            if (inputs[s].length != inputSize) {
+                throw new IllegalArgumentException("Incorrect number of inputs in set " + s);
+            }
+            if (targetOutputs[s].length != outputSize) {
+                throw new IllegalArgumentException("Incorrect number of target outputs in set " + s);
+            }
+        }
+    }
+
+    /**
+     * Feeds forward and back-propagates a range of samples, adding their
+     * weight gradients to {@link #weightGradients}. The weights are not
+     * modified. The samples must already have been checked with
+     * {@link #checkSamples(int[], double[][], double[][], int, int)}.
+     *
+     * @param network the network to calculate the gradients of
+     * @param inputs the input values of each sample
+     * @param targetOutputs the target output values of each sample
+     * @param from the index of the first sample (inclusive)
+     * @param to the index of the last sample (exclusive)
+     * @return the sum of the errors of the samples
+     */
+    double accumulate(final Network network, final double[][] inputs, final double[][] targetOutputs,
+            final int from, final int to) {
+        final double[][] weights = network.weights;
+        final float[][] floatWeights = network.floatWeights;
+        final TransferFunction transferFunction = network.getTransferFunction();
+        final TrainingMetrics metrics = network.getMetrics();
+        final int outputLayer = topology.length - 1;
+        final int inputSize = topology[0];
+        final int outputSize = topology[outputLayer];
+        double error = 0.0;
+
+        for (int start = from; start < to; start += TILE_SIZE) {
+            final int count = Math.min(TILE_SIZE, to - start);
+
+            // Copy the inputs into the first layer
+            final double[] inputLayer = outputs[0];
+            for (int b = 0; b < count; b++) {
+                System.arraycopy(inputs[start + b], 0, inputLayer, b * (inputSize + 1), inputSize);
+            }
+
+            for (int l = 1; l <= outputLayer; l++) {
+                final long time = metrics != null ? System.nanoTime() : 0;
+                if (floatWeights != null) {
+                    Kernels.forwardBatch(floatWeights[l - 1], outputs[l - 1], topology[l - 1] + 1, derivatives[l],
+                            outputs[l], topology[l], count, transferFunction);
+                } else {
+                    Kernels.forwardBatch(weights[l - 1], outputs[l - 1], topology[l - 1] + 1, derivatives[l],
+                            outputs[l], topology[l], count, transferFunction);
+                }
+                if (metrics != null) {
+                    metrics.recordForward(l, System.nanoTime() - time);
+                }
+            }
+
+            // Calculate the error and the output layer gradients
+            final double[] outputValues = outputs[outputLayer];
+            final double[] outputDerivatives = derivatives[outputLayer];
+            final double[] outputGradients = gradients[outputLayer];
+            for (int b = 0; b < count; b++) {
+                final double[] targetOutput = targetOutputs[start + b];
+                double sampleError = 0.0;
+                for (int n = 0; n < outputSize; n++) {
+                    final double delta = targetOutput[n] - outputValues[b * (outputSize + 1) + n];
+                    sampleError += delta * delta;
+                    outputGradients[b * outputSize + n] = delta * outputDerivatives[b * outputSize + n];
+                }
+                error += sampleError * 0.5;
+            }
+
+            for (int l = outputLayer - 1; l > 0; l--) {
+                final long time = metrics != null ? System.nanoTime() : 0;
+                if (floatWeights != null) {
+                    Kernels.backwardBatch(floatWeights[l], gradients[l + 1], topology[l + 1], topology[l] + 1,
+                            derivatives[l], gradients[l], topology[l], count);
+                } else {
+                    Kernels.backwardBatch(weights[l], gradients[l + 1], topology[l + 1], topology[l] + 1,
+                            derivatives[l], gradients[l], topology[l], count);
+                }
+                if (metrics != null) {
+                    metrics.recordBackward(l, System.nanoTime() - time);
+                }
+            }
+
+            for (int l = outputLayer; l > 0; l--) {
+                final long time = metrics != null ? System.nanoTime() : 0;
+                Kernels.accumulateBatch(weightGradients[l - 1], outputs[l - 1], topology[l - 1] + 1, gradients[l],
+                        topology[l], count);
+                if (metrics != null) {
+                    metrics.recordBackward(l, System.nanoTime() - time);
+                }
+            }
+        }
+
+        return error;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.usfirst.frc.team2084.neuralnetwork.Data.FormatException;
+
+/**
+ * Reads and writes networks in a compact binary format. Unlike the text format
+ * used by {@link Data}, the weights are stored as raw values, so they can be
+ * copied straight between a memory-mapped file and the network. This format
+ * only holds the network itself, not any training data.
+ *
+ * All values are little-endian. The file starts with a header:
+ *
+ * <pre>
+ * int    magic number ("JNNM")
+ * int    format version
+ * int    number of layers
+ * int[]  size of each layer
+ * double eta
+ * double momentum
+ * int    size of each weight in bytes (8 for double, 4 for float)
+ * short  length of the transfer function name
+ * byte[] transfer function name (UTF-8)
+ * </pre>
+ *
+ * The header is padded with zeros to a multiple of 8 bytes, and is followed by
+ * the weight matrix of each layer (except the last) as {@code double}s or
+ * {@code float}s, depending on the {@link Precision} of the network. Each
+ * matrix has one row per neuron in the next layer, holding the weights coming
+ * from every neuron in the layer and then from its bias neuron.
+ *
+ * Version 1 files do not have the weight size field, and always hold
+ * {@code double}s.
+ *
+ * @author Ben Wolsieffer
+ */
+public final class BinaryModel {
+
+    /**
+     * The magic number at the start of every file, "JNNM" in ASCII.
+     */
+    private static final int MAGIC = 0x4D4E4E4A;
+    /**
+     * The current version of the format.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The largest region that is mapped at once, which must fit in a
+     * {@link MappedByteBuffer}.
+     */
+    private static final int MAX_MAP_SIZE = 1 << 30;
+
+    private BinaryModel() {
+    }
+
+    /**
+     * Writes a network to the specified file, replacing it if it exists.
+     *
+     * @param network the network to write
+     * @param file the file to write
+     *
+     * @throws IOException if there is a problem writing the file
+     */
+    public static void save(final Network network, final File file) throws IOException {
+        final int[] topology = network.getTopology();
+        final byte[] name = network.getTransferFunction().toString().getBytes(StandardCharsets.UTF_8);
+
+        final ByteBuffer header = ByteBuffer.allocate(headerSize(VERSION, topology.length, name.length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(topology.length);
+        for (final int size : topology) {
+            header.putInt(size);
+        }
+        header.putDouble(network.getEta());
+        header.putDouble(network.getMomentum());
+        header.putInt(network.getPrecision().getBytes());
+        header.putShort((short) name.length);
+        header.put(name);
+        header.rewind();
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            long position = header.capacity();
+            if (network.floatWeights != null) {
+                for (final float[] weights : network.floatWeights) {
+                    position = transfer(channel, FileChannel.MapMode.READ_WRITE, position, weights);
+                }
+            } else {
+                for (final double[] weights : network.weights) {
+                    position = transfer(channel, FileChannel.MapMode.READ_WRITE, position, weights);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a network from the specified file.
+     *
+     * @param file the file to read
+     * @return the network
+     *
+     * @throws IOException if there is a problem reading the file
+     * @throws FormatException if the file is not a valid network file
+     */
+    public static Network load(final File file) throws IOException, FormatException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(fileSize, MAX_MAP_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+
+            try {
+                if (header.getInt() != MAGIC) {
+                    throw new FormatException("Not a binary network file.");
+                }
+                final int version = header.getInt();
+                if (version < 1 || version > VERSION) {
+                    throw new FormatException("Unsupported binary format version: " + version);
+                }
+
+                // Every layer size has to fit in the header, so a corrupt layer
+                // count cannot allocate a huge topology
+                final int layers = header.getInt();
+                if (layers < 2 || layers > header.remaining() / Integer.BYTES) {
+                    throw new FormatException("Invalid topology.");
+                }
+                final int[] topology = new int[layers];
+                for (int l = 0; l < layers; l++) {
+                    topology[l] = header.getInt();
+                    if (topology[l] < 1) {
+                        throw new FormatException("Invalid topology.");
+                    }
+                }
+                final double eta = header.getDouble();
+                final double momentum = header.getDouble();
+
+                Precision precision = Precision.DOUBLE;
+                if (version >= 2) {
+                    final int weightSize = header.getInt();
+                    if (weightSize == Float.BYTES) {
+                        precision = Precision.FLOAT;
+                    } else if (weightSize != Double.BYTES) {
+                        throw new FormatException("Unsupported weight size: " + weightSize);
+                    }
+                }
+
+                final byte[] name = new byte[header.getShort() & 0xFFFF];
+                header.get(name);
+                final TransferFunction transferFunction = TransferFunction
+                        .forName(new String(name, StandardCharsets.UTF_8));
+                if (transferFunction == null) {
+                    throw new FormatException("Unrecognized transfer function.");
+                }
+
+                long position = headerSize(version, layers, name.length);
+                // Stop counting as soon as there are more weights than the file
+                // can hold, so the count cannot overflow
+                final long maxWeightCount = (fileSize - position) / precision.getBytes();
+                long weightCount = 0;
+                for (int l = 0; l < layers - 1; l++) {
+                    final long layerWeights = ((long) topology[l] + 1) * topology[l + 1];
+                    weightCount += layerWeights;
+                    if (layerWeights > Integer.MAX_VALUE || weightCount > maxWeightCount) {
+                        throw new FormatException("Wrong number of connection weights.");
+                    }
+                }
+                if (fileSize != position + weightCount * precision.getBytes()) {
+                    throw new FormatException("Wrong number of connection weights.");
+                }
+
+                final Network network = new Network(topology, eta, momentum, transferFunction, precision);
+                if (network.floatWeights != null) {
+                    for (final float[] weights : network.floatWeights) {
+                        position = transfer(channel, FileChannel.MapMode.READ_ONLY, position, weights);
+                    }
+                } else {
+                    for (final double[] weights : network.weights) {
+                        position = transfer(channel, FileChannel.MapMode.READ_ONLY, position, weights);
+                    }
+                }
+                return network;
+            } catch (final BufferUnderflowException e) {
+                throw new FormatException("Truncated header.");
+            }
+        }
+    }
+
+    /**
+     * Calculates the size of the header, including padding.
+     *
+     * @param version the version of the format
+     * @param layers the number of layers
+     * @param nameLength the length of the encoded transfer function name
+     * @return the size of the header in bytes
+     */
+    private static int headerSize(final int version, final int layers, final int nameLength) {
+        int size = 3 * Integer.BYTES + layers * Integer.BYTES + 2 * Double.BYTES + Short.BYTES + nameLength;
+        if (version >= 2) {
+            // Weight size
+            size += Integer.BYTES;
+        }
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Copies an array of weights between the file and the network through
+     * mapped regions of the file.
+     *
+     * @param channel the file channel
+     * @param mode {@link FileChannel.MapMode#READ_WRITE} to write the weights to
+     *        the file, or {@link FileChannel.MapMode#READ_ONLY} to read them
+     * @param position the position of the weights in the file
+     * @param weights the weights of the network
+     * @return the position after the weights
+     *
+     * @throws IOException if the file cannot be mapped
+     */
+    private static long transfer(final FileChannel channel, final FileChannel.MapMode mode, long position,
+            final double[] weights) throws IOException {
+        final int maxCount = MAX_MAP_SIZE / Double.BYTES;
+        for (int offset = 0; offset < weights.length; offset += maxCount) {
+            final int count = Math.min(maxCount, weights.length - offset);
+            final MappedByteBuffer buffer = channel.map(mode, position, (long) count * Double.BYTES);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                buffer.asDoubleBuffer().get(weights, offset, count);
+            } else {
+                buffer.asDoubleBuffer().put(weights, offset, count);
+            }
+            position += (long) count * Double.BYTES;
+        }
+        return position;
+    }
+
+    /**
+     * Copies an array of single precision weights between the file and the
+     * network through mapped regions of the file.
+     *
+     * @param channel the file channel
+     * @param mode {@link FileChannel.MapMode#READ_WRITE} to write the weights to
+     *        the file, or {@link FileChannel.MapMode#READ_ONLY} to read them
+     * @param position the position of the weights in the file
+     * @param weights the weights of the network
+     * @return the position after the weights
+     *
+     * @throws IOException if the file cannot be mapped
+     */
+    private static long transfer(final FileChannel channel, final FileChannel.MapMode mode, long position,
+            final float[] weights) throws IOException {
+        final int maxCount = MAX_MAP_SIZE / Float.BYTES;
+        for (int offset = 0; offset < weights.length; offset += maxCount) {
+            final int count = Math.min(maxCount, weights.length - offset);
+            final MappedByteBuffer buffer = channel.map(mode, position, (long) count * Float.BYTES);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                buffer.asFloatBuffer().get(weights, offset, count);
+            } else {
+                buffer.asFloatBuffer().put(weights, offset, count);
+            }
+            position += (long) count * Float.BYTES;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves checkpoints of a {@link Network} in the {@link Data} format without
+ * pausing training. A checkpoint copies the weights and optimizer state into
+ * a snapshot, which only takes as long as copying the arrays, and the
+ * snapshot is written to disk on a background thread while training
+ * continues. The file is first written to a temporary file in the same
+ * directory, which is then renamed over the checkpoint file, so a crash while
+ * writing never leaves a corrupt checkpoint behind.
+ *
+ * There are two snapshots, so a new checkpoint can be taken while the
+ * previous one is still being written. If both are in use, the checkpoint is
+ * skipped instead of waiting. The second snapshot is only allocated if it is
+ * needed.
+ *
+ * Checkpoints can be taken explicitly with {@link #checkpoint()}, or
+ * periodically every number of samples or amount of time. The periodic
+ * checkpoints are triggered by calls to {@link #samplesTrained(long)}, which
+ * {@link Trainer} makes after each batch if the checkpointer is set with
+ * {@link Trainer#setCheckpointer(Checkpointer)}. A checkpointer can also be
+ * added as a listener to the {@link TrainingMetrics} of the network instead,
+ * to check after each epoch, which works with any trainer that records
+ * epochs. Only one of the two may be used, because each of them reports
+ * every sample, so using both would count each sample twice.
+ *
+ * A checkpoint must be taken while the network is not being trained, such as
+ * between two batches, on the thread that trains it.
+ *
+ * @author Ben Wolsieffer
+ */
+public class Checkpointer implements TrainingListener, Closeable {
+
+    private static final int SNAPSHOTS = 2;
+
+    private final Network network;
+    private final File file;
+    private final ExecutorService writer;
+
+    /**
+     * The snapshots that are not being written.
+     */
+    private final ArrayBlockingQueue<Network> free = new ArrayBlockingQueue<>(SNAPSHOTS);
+    private int snapshots;
+
+    private long sampleInterval;
+    private long timeInterval;
+    private long samplesSinceCheckpoint;
+    private long lastCheckpointTime = System.nanoTime();
+
+    private final AtomicLong written = new AtomicLong();
+    private long skipped;
+    private volatile IOException error;
+
+    /**
+     * Creates a checkpointer that saves a network to a file. No checkpoints
+     * are taken periodically until an interval is set.
+     *
+     * @param network the network to save
+     * @param file the file to save the checkpoints in
+     */
+    public Checkpointer(final Network network, final File file) {
+        this.network = network;
+        this.file = file.getAbsoluteFile();
+        writer = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "Checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the number of samples between periodic checkpoints.
+     *
+     * @param samples the number of samples, or 0 to not checkpoint based on
+     *        the number of samples
+     */
+    public synchronized void setSampleInterval(final long samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("samples cannot be negative.");
+        }
+        sampleInterval = samples;
+    }
+
+    /**
+     * Gets the number of samples between periodic checkpoints.
+     *
+     * @return the number of samples, or 0 if checkpoints are not based on the
+     *         number of samples
+     */
+    public synchronized long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Sets the time between periodic checkpoints.
+     *
+     * @param time the time between checkpoints, or 0 to not checkpoint based
+     *        on time
+     * @param unit the unit of the time
+     */
+    public synchronized void setTimeInterval(final long time, final TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("time cannot be negative.");
+        }
+        timeInterval = unit.toNanos(time);
+    }
+
+    /**
+     * Gets the time between periodic checkpoints.
+     *
+     * @param unit the unit to return the time in
+     * @return the time, or 0 if checkpoints are not based on time
+     */
+    public synchronized long getTimeInterval(final TimeUnit unit) {
+        return unit.convert(timeInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records that the network has been trained on a number of samples, and
+     * takes a checkpoint if either interval has passed since the last one.
+     *
+     * @param count the number of samples
+     */
+    public synchronized void samplesTrained(final long count) {
+        samplesSinceCheckpoint += count;
+        if ((sampleInterval > 0 && samplesSinceCheckpoint >= sampleInterval)
+                || (timeInterval > 0 && System.nanoTime() - lastCheckpointTime >= timeInterval)) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Checks whether a checkpoint is due at the end of each epoch. This must
+     * not be used together with
+     * {@link Trainer#setCheckpointer(Checkpointer)}.
+     */
+    @Override
+    public void epochCompleted(final TrainingMetrics metrics) {
+        samplesTrained(metrics.getEpochSamples());
+    }
+
+    /**
+     * Takes a snapshot of the network and starts writing it in the
+     * background.
+     *
+     * @return true if the checkpoint was taken, or false if it was skipped
+     *         because the previous checkpoints are still being written
+     */
+    public synchronized boolean checkpoint() {
+        samplesSinceCheckpoint = 0;
+        lastCheckpointTime = System.nanoTime();
+
+        Network snapshot = free.poll();
+        if (snapshot == null) {
+            if (snapshots == SNAPSHOTS) {
+                skipped++;
+                return false;
+            }
+            snapshot = new Network(network.getTopology().clone(), network.getEta(), network.getMomentum(),
+                    network.getTransferFunction(), network.getPrecision());
+            snapshots++;
+        }
+
+        final Optimizer optimizer = network.getOptimizer();
+        final Optimizer snapshotOptimizer = snapshot.getOptimizer();
+        if (snapshotOptimizer.getClass() != optimizer.getClass()
+                || !Arrays.equals(snapshotOptimizer.getParameters(), optimizer.getParameters())) {
+            final Optimizer copy = Optimizer.forName(optimizer.toString(), optimizer.getParameters());
+            if (copy == null || copy.getClass() != optimizer.getClass()) {
+                free.offer(snapshot);
+                throw new IllegalStateException("The optimizer of the network cannot be saved.");
+            }
+            snapshot.setOptimizer(copy);
+        }
+        snapshot.copyWeights(network);
+        snapshot.copyOptimizerState(network);
+
+        final Network pending = snapshot;
+        writer.execute(() -> write(pending));
+        return true;
+    }
+
+    /**
+     * Writes a snapshot to the checkpoint file, and then returns it to the
+     * free snapshots.
+     *
+     * @param snapshot the snapshot to write
+     */
+    private void write(final Network snapshot) {
+        try {
+            final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", file.getParentFile());
+            try {
+                new Data(snapshot).save(new SyncingOutputStream(new FileOutputStream(temp)));
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                written.incrementAndGet();
+            } finally {
+                temp.delete();
+            }
+        } catch (final IOException e) {
+            error = e;
+        } finally {
+            free.offer(snapshot);
+        }
+    }
+
+    /**
+     * Waits until every checkpoint that has been taken is written.
+     *
+     * @throws IOException if writing a checkpoint failed since the last call
+     */
+    public void flush() throws IOException {
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        final IOException e = error;
+        if (e != null) {
+            error = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until every checkpoint that has been taken is written, and stops
+     * the background thread. No more checkpoints can be taken afterwards.
+     *
+     * @throws IOException if writing a checkpoint failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * Gets the file that the checkpoints are saved in.
+     *
+     * @return the checkpoint file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of checkpoints that have been written.
+     *
+     * @return the number of checkpoints
+     */
+    public long getCheckpoints() {
+        return written.get();
+    }
+
+    /**
+     * Gets the number of checkpoints that were skipped because the previous
+     * checkpoints were still being written.
+     *
+     * @return the number of skipped checkpoints
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Syncs a file to disk before closing it, so that it is never renamed
+     * over the previous checkpoint before its contents are stored.
+     */
+    private static class SyncingOutputStream extends FilterOutputStream {
+
+        private final FileOutputStream file;
+
+        SyncingOutputStream(final FileOutputStream file) {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            file.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                file.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
@@ -7,20 +7,61 @@
 package org.usfirst.frc.team2084.neuralnetwork;
 
 /**
- * Represents a connection between two {@link Neuron}s, and holds a weight and
- * its delta.
+ * Represents a connection between two {@link Neuron}s, and gives access to its
+ * weight and delta. The values themselves are stored in the weight matrices of
+ * the {@link Network}, so this is only a view of them.
  * 
  * @author Ben Wolsieffer
  */
 public class Connection {
 
+    private final Network network;
+    private final int layer;
     /**
-     * The weight of this connection.
+     * The index of this connection in the weight matrix of its layer.
      */
-    public double weight = Math.random();
+    private final int index;
+
+    Connection(final Network network, final int layer, final int index) {
+        this.network = network;
+        this.layer = layer;
+        this.index = index;
+    }
+
+    /**
+     * Gets the weight of this connection.
+     * 
+     * @return the weight
+     */
+    public double getWeight() {
+        return network.getWeight(layer, index);
+    }
+
+    /**
+     * Sets the weight of this connection.
+     * 
+     * @param weight the new weight
+     */
+    public void setWeight(final double weight) {
+        network.setWeight(layer, index, weight);
+    }
+
+    /**
+     * Gets the change in the weight from the last time it was updated. This is
+     * used for momentum calculation.
+     * 
+     * @return the delta weight
+     */
+    public double getDeltaWeight() {
+        return network.getDeltaWeight(layer, index);
+    }
+
     /**
-     * The change in the weight from the last time it was updated. This is used
-     * for momentum calculation.
+     * Sets the change in the weight from the last time it was updated.
+     * 
+     * @param deltaWeight the new delta weight
      */
-    public double deltaWeight = 0;
+    public void setDeltaWeight(final double deltaWeight) {
+        network.setDeltaWeight(layer, index, deltaWeight);
+    }
 }
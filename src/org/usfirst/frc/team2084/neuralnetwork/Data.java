@@ -16,8 +16,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 /**
  * Class that allows the reading and writing of neural network data to/from a
@@ -40,11 +39,6 @@ public class Data {
         }
     }
 
-    /**
-     * Pattern used to identify a label in the network data.
-     */
-    private static final Pattern labelPattern = Pattern.compile(".+:");
-
     /**
      * The neural {@link Network} that was created from the data or passed to
      * the constructor.
@@ -93,11 +87,11 @@ public class Data {
 
         // Make sure each input/output pair is the right length.
         for (int i = 0; i < inputs.length; i++) {
-            if (inputs[i].length != network.getInputLayer().length) {
+            if (inputs[i].length != network.getTopology()[0]) {
                 throw new IllegalArgumentException("Incorrect number of inputs in set " + i);
             }
 
-            if (targetOutputs[i].length != network.getOutputLayer().length) {
+            if (targetOutputs[i].length != network.getTopology()[network.getTotalLayers() - 1]) {
                 throw new IllegalArgumentException("Incorrect number of target outputs in set " + i);
             }
         }
@@ -131,7 +125,8 @@ public class Data {
      * @throws FormatException if the network data contains an error
      */
     public Data(final InputStream stream) throws FormatException {
-        try (final Scanner data = new Scanner(stream)) {
+        try (final DataReader data = new DataReader(stream, "topology", "eta", "momentum", "transfer_function",
+                "precision", "optimizer", "optimizer_steps", "in", "out", "neuron", "optimizer_state")) {
 
             // These lists are used to read an unknown number of inputs/outputs,
             // and then they are converted to arrays for efficiency/simplicity
@@ -149,6 +144,16 @@ public class Data {
             // The momentum value, aka alpha
             double momentum = 0;
             TransferFunction transferFunction = null;
+            // The precision of the weights, which defaults to double for
+            // files that were written before it could be changed
+            Precision precision = Precision.DOUBLE;
+            // The optimizer, which defaults to the network's own
+            Optimizer optimizer = null;
+            long optimizerSteps = 0;
+            // The optimizer state values, in the order they were read. The
+            // layout is checked once the topology and optimizer are known.
+            double[] optimizerState = null;
+            int optimizerStateLength = 0;
 
             // 3D array to hold the connection weights for each neuron
             double[][][] weights = null;
@@ -161,22 +166,28 @@ public class Data {
 
             // Loop while there is another line in the file
             while (data.hasNextLine()) {
-                // Search for label pattern in the current line
-                String label = data.findInLine(labelPattern);
+                // Search for a label at the start of the current line
+                String label = data.findLabel();
                 // If a label is found, parse it
                 if (label != null) {
-                    label: switch (label.substring(0, label.length() - 1)) {
+                    label: switch (label) {
                     case "topology": {
-                        ArrayList<Integer> topologyList = new ArrayList<>(3);
+                        // Read into an array that grows as needed, to avoid
+                        // boxing each layer size
+                        int[] topologyBuffer = new int[4];
+                        int layerCount = 0;
                         while (data.hasNextInt()) {
-                            topologyList.add(data.nextInt());
+                            if (layerCount == topologyBuffer.length) {
+                                topologyBuffer = Arrays.copyOf(topologyBuffer, layerCount * 2);
+                            }
+                            topologyBuffer[layerCount++] = data.nextInt();
                         }
                         // If no topology was read, throw an exception
-                        if (topologyList.size() < 1) {
+                        if (layerCount < 1) {
                             throw new FormatException("Invalid topology.");
                         }
-                        // Copy the topology list to the array
-                        topology = topologyList.stream().mapToInt(i -> i).toArray();
+                        // Trim the buffer to the number of layers
+                        topology = Arrays.copyOf(topologyBuffer, layerCount);
                     }
                     break;
                     case "eta":
@@ -197,23 +208,65 @@ public class Data {
                     break;
                     case "transfer_function":
                         if (data.hasNext()) {
-                            switch (data.next()) {
-                            case "sig":
-                                transferFunction = new TransferFunction.Sigmoid();
-                            break;
-                            case "tanh":
-                                transferFunction = new TransferFunction.HyperbolicTangent();
-                            break;
-                            case "step":
-                                transferFunction = new TransferFunction.Step();
-                            break;
-                            default:
+                            transferFunction = TransferFunction.forName(data.next());
+                            if (transferFunction == null) {
                                 throw new FormatException("Unrecognized transfer function.");
                             }
                         } else {
                             throw new FormatException("Empty transfer function definition.");
                         }
                     break;
+                    case "precision":
+                        if (data.hasNext()) {
+                            precision = Precision.forName(data.next());
+                            if (precision == null) {
+                                throw new FormatException("Unrecognized precision.");
+                            }
+                        } else {
+                            throw new FormatException("Empty precision definition.");
+                        }
+                    break;
+                    case "optimizer":
+                        if (data.hasNext()) {
+                            final String name = data.next();
+                            double[] parameters = new double[4];
+                            int parameterCount = 0;
+                            while (data.hasNextDouble()) {
+                                if (parameterCount == parameters.length) {
+                                    parameters = Arrays.copyOf(parameters, parameterCount * 2);
+                                }
+                                parameters[parameterCount++] = data.nextDouble();
+                            }
+                            try {
+                                optimizer = Optimizer.forName(name, Arrays.copyOf(parameters, parameterCount));
+                            } catch (final IllegalArgumentException e) {
+                                throw new FormatException("Invalid optimizer parameters.");
+                            }
+                            if (optimizer == null) {
+                                throw new FormatException("Unrecognized optimizer.");
+                            }
+                        } else {
+                            throw new FormatException("Empty optimizer definition.");
+                        }
+                    break;
+                    case "optimizer_steps":
+                        if (data.hasNextDouble()) {
+                            optimizerSteps = (long) data.nextDouble();
+                        } else {
+                            throw new FormatException("Invalid optimizer steps.");
+                        }
+                    break;
+                    case "optimizer_state":
+                        if (optimizerState == null) {
+                            optimizerState = new double[256];
+                        }
+                        while (data.hasNextDouble()) {
+                            if (optimizerStateLength == optimizerState.length) {
+                                optimizerState = Arrays.copyOf(optimizerState, optimizerStateLength * 2);
+                            }
+                            optimizerState[optimizerStateLength++] = data.nextDouble();
+                        }
+                    break;
                     case "in":
                         // Topology must be defined first so we know how many
                         // inputs to expect
@@ -367,21 +420,56 @@ public class Data {
                 throw new FormatException("Momentum not defined.");
             }
 
-            network = new Network(topology, eta, momentum, transferFunction);
+            network = new Network(topology, eta, momentum, transferFunction, precision);
 
             // Copy the connection weights to their corresponding neurons, if
             // valid
             if (weights != null && weightLayerIndex != -1) {
                 for (int l = 0; l < weights.length; l++) {
-                    Neuron[] layer = network.getLayer(l);
-                    for (int n = 0; n < layer.length; n++) {
-                        Connection[] connections = layer[n].getOutputConnections();
-                        for (int c = 0; c < connections.length; c++) {
-                            connections[c].weight = weights[l][n][c];
+                    for (int n = 0; n < weights[l].length; n++) {
+                        for (int c = 0; c < weights[l][n].length; c++) {
+                            network.putWeight(l, c * (topology[l] + 1) + n, weights[l][n][c]);
+                        }
+                    }
+                }
+                network.weightsChanged();
+            }
+
+            if (optimizer != null) {
+                network.setOptimizer(optimizer);
+            } else {
+                optimizer = network.getOptimizer();
+            }
+            // The steps are only restored along with the state they were
+            // reached with, because Adam would skip the bias correction of
+            // averages that start over from zero
+            boolean stateLoaded = optimizer.getStateCount() == 0;
+            // Copy the optimizer state, which is laid out like the weights,
+            // with all the layers of each state buffer together
+            if (optimizerState != null) {
+                int expected = 0;
+                for (int l = 0; l < topology.length - 1; l++) {
+                    expected += (topology[l] + 1) * topology[l + 1];
+                }
+                if (optimizerStateLength == expected * optimizer.getStateCount()) {
+                    int i = 0;
+                    for (int b = 0; b < optimizer.getStateCount(); b++) {
+                        for (int l = 0; l < topology.length - 1; l++) {
+                            for (int n = 0; n <= topology[l]; n++) {
+                                for (int c = 0; c < topology[l + 1]; c++) {
+                                    optimizer.setState(b, l, c * (topology[l] + 1) + n, optimizerState[i++]);
+                                }
+                            }
                         }
                     }
+                    stateLoaded = true;
+                } else {
+                    System.err.println("Warning: invalid optimizer state, ignoring.");
                 }
+            } else if (!stateLoaded && optimizerSteps != 0) {
+                System.err.println("Warning: optimizer steps without optimizer state, ignoring.");
             }
+            optimizer.setSteps(stateLoaded ? optimizerSteps : 0);
         }
     }
 
@@ -427,8 +515,8 @@ public class Data {
 
     /**
      * Write the network data to the specified file. This writes all known data,
-     * including topology/parameter, input, target outputs, and connectoin
-     * weights.
+     * including topology/parameter, input, target outputs, connectoin
+     * weights and optimizer state.
      * 
      * @param file the file to write
      * 
@@ -458,6 +546,13 @@ public class Data {
             data.write("\neta: " + network.getEta());
             data.write("\nmomentum: " + network.getMomentum());
             data.write("\ntransfer_function: " + network.getTransferFunction());
+            data.write("\nprecision: " + network.getPrecision());
+            final Optimizer optimizer = network.getOptimizer();
+            data.write("\noptimizer: " + optimizer);
+            for (final double parameter : optimizer.getParameters()) {
+                data.write(" " + parameter);
+            }
+            data.write("\noptimizer_steps: " + optimizer.getSteps());
             for (int i = 0; i < inputs.length; i++) {
                 final double[] input = inputs[i];
                 final double[] targetOutput = targetOutputs[i];
@@ -473,22 +568,40 @@ public class Data {
 
             data.write("\n");
 
+            final int[] topology = network.getTopology();
+            // Write float weights with the shortest representation that reads
+            // back as the same float
+            final boolean single = network.getPrecision() == Precision.FLOAT;
             for (int i = 0; i < network.getTotalLayers() - 1; i++) {
-                final Neuron[] layer = network.getLayer(i);
-                for (int j = 0; j < layer.length; j++) {
-                    Neuron n = layer[j];
-                    Connection[] conns = n.getOutputConnections();
+                for (int j = 0; j <= topology[i]; j++) {
                     data.write("\nneuron:");
-                    for (int c = 0; c < conns.length; c++) {
-                        Connection conn = conns[c];
+                    for (int c = 0; c < topology[i + 1]; c++) {
                         data.write(" ");
-                        data.write(Double.toString(conn.weight));
+                        final double weight = network.getWeight(i, j, c);
+                        data.write(single ? Float.toString((float) weight) : Double.toString(weight));
                     }
                 }
                 if (i < network.getTotalLayers() - 1) {
                     data.write("\n");
                 }
             }
+
+            // The momentum optimizer keeps its state with the same precision
+            // as the weights, but the others always use doubles
+            final boolean singleState = single && optimizer instanceof Optimizer.Momentum;
+            for (int b = 0; b < optimizer.getStateCount(); b++) {
+                for (int i = 0; i < network.getTotalLayers() - 1; i++) {
+                    for (int j = 0; j <= topology[i]; j++) {
+                        data.write("\noptimizer_state:");
+                        for (int c = 0; c < topology[i + 1]; c++) {
+                            data.write(" ");
+                            final double value = optimizer.getState(b, i, c * (topology[i] + 1) + j);
+                            data.write(singleState ? Float.toString((float) value) : Double.toString(value));
+                        }
+                    }
+                    data.write("\n");
+                }
+            }
         }
     }
 }
\ No newline at end of file
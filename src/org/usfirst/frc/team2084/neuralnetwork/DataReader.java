@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.InputMismatchException;
+
+/**
+ * Reads the labels and values of the network data format straight from the
+ * bytes of a stream. This replaces {@link java.util.Scanner}, which uses regular
+ * expressions and locale-aware number parsing for every token. Labels are
+ * matched against a fixed set of names and numbers are parsed in place in the
+ * read buffer, so no objects are created for each token.
+ *
+ * The methods are named after their {@link java.util.Scanner} equivalents, but
+ * values are only read from the current line, and labels must be the first
+ * token on a line.
+ *
+ * @author Ben Wolsieffer
+ */
+final class DataReader implements Closeable {
+
+    /**
+     * Returned by {@link #findLabel()} for a label that is not one of the
+     * known labels.
+     */
+    static final String UNKNOWN_LABEL = "?";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The kinds of value that can be waiting in {@link #pendingLength}.
+     */
+    private static final int NONE = 0;
+    private static final int DOUBLE = 1;
+    private static final int INT = 2;
+
+    private final InputStream stream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfStream = false;
+
+    private final String[] labels;
+    private final byte[][] labelBytes;
+
+    /**
+     * A value that has been parsed by {@link #hasNextDouble()} or
+     * {@link #hasNextInt()}, but not consumed yet.
+     */
+    private int pendingKind = NONE;
+    private int pendingLength;
+    private double pendingDouble;
+    private int pendingInt;
+
+    /**
+     * Creates a reader for the specified stream that recognizes the specified
+     * labels.
+     *
+     * @param stream the stream to read
+     * @param labels the names of the labels that {@link #findLabel()} returns
+     */
+    DataReader(final InputStream stream, final String... labels) {
+        this.stream = stream;
+        this.labels = labels;
+        labelBytes = new byte[labels.length][];
+        for (int i = 0; i < labels.length; i++) {
+            labelBytes[i] = labels[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Checks if there is any more input.
+     *
+     * @return true if there is another line
+     */
+    boolean hasNextLine() {
+        return position < limit || fill();
+    }
+
+    /**
+     * Skips the rest of the current line.
+     */
+    void nextLine() {
+        pendingKind = NONE;
+        while (true) {
+            while (position < limit) {
+                if (buffer[position++] == '\n') {
+                    return;
+                }
+            }
+            if (!fill()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the label at the start of the current line, which is the first
+     * token up to a colon.
+     *
+     * @return the matching label name passed to the constructor,
+     *         {@link #UNKNOWN_LABEL} if it does not match any of them, or null
+     *         if the line does not start with a label
+     */
+    String findLabel() {
+        pendingKind = NONE;
+        if (!skipSpaces()) {
+            return null;
+        }
+        final int end = tokenEnd();
+        int colon = position;
+        while (colon < end && buffer[colon] != ':') {
+            colon++;
+        }
+        if (colon == end || colon == position) {
+            return null;
+        }
+
+        String label = UNKNOWN_LABEL;
+        final int length = colon - position;
+        for (int l = 0; l < labelBytes.length; l++) {
+            final byte[] name = labelBytes[l];
+            if (name.length == length && regionMatches(name, position)) {
+                label = labels[l];
+                break;
+            }
+        }
+        position = colon + 1;
+        return label;
+    }
+
+    /**
+     * Checks if there is another token on the current line.
+     *
+     * @return true if there is another token
+     */
+    boolean hasNext() {
+        return pendingKind != NONE || skipSpaces();
+    }
+
+    /**
+     * Reads the next token on the current line as a string.
+     *
+     * @return the token
+     */
+    String next() {
+        if (!hasNext()) {
+            throw new InputMismatchException();
+        }
+        pendingKind = NONE;
+        final int end = tokenEnd();
+        final String token = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+        position = end;
+        return token;
+    }
+
+    /**
+     * Checks if the next token on the current line is an integer.
+     *
+     * @return true if the next token is an integer
+     */
+    boolean hasNextInt() {
+        if (pendingKind == INT) {
+            return true;
+        }
+        pendingKind = NONE;
+        if (!skipSpaces()) {
+            return false;
+        }
+        final int end = tokenEnd();
+        int i = position;
+        boolean negative = false;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                return false;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return false;
+        }
+        pendingInt = (int) value;
+        pendingLength = end - position;
+        pendingKind = INT;
+        return true;
+    }
+
+    /**
+     * Reads the next token on the current line as an integer.
+     *
+     * @return the integer
+     */
+    int nextInt() {
+        if (!hasNextInt()) {
+            throw new InputMismatchException();
+        }
+        position += pendingLength;
+        pendingKind = NONE;
+        return pendingInt;
+    }
+
+    /**
+     * Checks if the next token on the current line is a number.
+     *
+     * @return true if the next token is a number
+     */
+    boolean hasNextDouble() {
+        if (pendingKind == DOUBLE) {
+            return true;
+        }
+        pendingKind = NONE;
+        if (!skipSpaces()) {
+            return false;
+        }
+        final int end = tokenEnd();
+        if (!parseDouble(position, end)) {
+            return false;
+        }
+        pendingLength = end - position;
+        pendingKind = DOUBLE;
+        return true;
+    }
+
+    /**
+     * Reads the next token on the current line as a number.
+     *
+     * @return the number
+     */
+    double nextDouble() {
+        if (!hasNextDouble()) {
+            throw new InputMismatchException();
+        }
+        position += pendingLength;
+        pendingKind = NONE;
+        return pendingDouble;
+    }
+
+    @Override
+    public void close() {
+        try {
+            stream.close();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads more data into the buffer, moving the unread data to the start.
+     *
+     * @return true if more data was read
+     */
+    private boolean fill() {
+        if (endOfStream) {
+            return false;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            return false;
+        }
+        try {
+            final int read = stream.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfStream = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Skips spaces up to the next token on the current line.
+     *
+     * @return true if there is a token, or false if the end of the line or the
+     *         input was reached
+     */
+    private boolean skipSpaces() {
+        while (true) {
+            while (position < limit) {
+                final byte b = buffer[position];
+                if (b == ' ' || b == '\t' || b == '\r') {
+                    position++;
+                } else {
+                    return b != '\n';
+                }
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the token at the current position, reading more data
+     * if the token continues past the end of the buffer.
+     *
+     * @return the index just after the token
+     */
+    private int tokenEnd() {
+        int length = 0;
+        while (true) {
+            for (int i = position + length; i < limit; i++) {
+                final byte b = buffer[i];
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    return i;
+                }
+            }
+            length = limit - position;
+            // fill() moves the token to the start of the buffer
+            if (!fill()) {
+                return limit;
+            }
+        }
+    }
+
+    private boolean regionMatches(final byte[] name, final int start) {
+        for (int i = 0; i < name.length; i++) {
+            if (buffer[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal number from the buffer into {@link #pendingDouble}.
+     *
+     * @param start the index of the first byte of the number
+     * @param end the index just after the number
+     * @return true if the bytes are a valid number
+     */
+    private boolean parseDouble(final int start, final int end) {
+        int i = start;
+        boolean negative = false;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        if (buffer[i] == 'N' || buffer[i] == 'I') {
+            // NaN and Infinity, which Double.toString() can produce
+            return parseSlow(start, end);
+        }
+
+        // Significant digits, up to as many as are exact in a long
+        long significand = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        boolean truncated = false;
+
+        for (; i < end; i++) {
+            final int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (digits < 18) {
+                significand = significand * 10 + digit;
+                if (significand != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                truncated |= digit != 0;
+            }
+        }
+        if (i < end && buffer[i] == '.') {
+            for (i++; i < end; i++) {
+                final int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                anyDigits = true;
+                if (digits < 18) {
+                    significand = significand * 10 + digit;
+                    if (significand != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    truncated |= digit != 0;
+                }
+            }
+        }
+        if (!anyDigits) {
+            return false;
+        }
+        if (i < end && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+                negativeExponent = buffer[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return false;
+            }
+            int explicitExponent = 0;
+            for (; i < end; i++) {
+                final int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                // Anything this large is zero or infinity anyway
+                if (explicitExponent < 100000) {
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != end) {
+            return false;
+        }
+
+        if (significand == 0) {
+            pendingDouble = negative ? -0.0 : 0.0;
+            return true;
+        }
+        if (truncated) {
+            return parseSlow(start, end);
+        }
+
+        double value;
+        if (significand < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            // Both values are exact, so one correctly rounded operation gives
+            // the correctly rounded result
+            value = exponent < 0 ? significand / POWERS_OF_TEN[-exponent] : significand * POWERS_OF_TEN[exponent];
+        } else {
+            value = eiselLemire(significand, exponent);
+            if (Double.isNaN(value)) {
+                return parseSlow(start, end);
+            }
+        }
+        pendingDouble = negative ? -value : value;
+        return true;
+    }
+
+    /**
+     * Parses a number using {@link Double#parseDouble(String)}, for the rare
+     * cases that the fast paths cannot handle.
+     */
+    private boolean parseSlow(final int start, final int end) {
+        try {
+            pendingDouble = Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+            return true;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * The range of decimal exponents covered by the table of powers of five.
+     */
+    private static final int SMALLEST_POWER = -342;
+    private static final int LARGEST_POWER = 308;
+    /**
+     * The high and low 64 bits of 5^q, normalized to 128 bits (rounded up for
+     * negative q), for each q from {@link #SMALLEST_POWER} to
+     * {@link #LARGEST_POWER}.
+     */
+    private static final long[] POWERS_OF_FIVE_HIGH = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+    private static final long[] POWERS_OF_FIVE_LOW = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+
+    static {
+        final BigInteger five = BigInteger.valueOf(5);
+        for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+            BigInteger power;
+            if (q >= 0) {
+                power = five.pow(q);
+            } else {
+                final BigInteger divisor = five.pow(-q);
+                final int z = divisor.bitLength();
+                final int b = q >= -27 ? z + 127 : 2 * z + 128;
+                power = BigInteger.ONE.shiftLeft(b).divide(divisor).add(BigInteger.ONE);
+            }
+            final int shift = power.bitLength() - 128;
+            power = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            POWERS_OF_FIVE_HIGH[q - SMALLEST_POWER] = power.shiftRight(64).longValue();
+            POWERS_OF_FIVE_LOW[q - SMALLEST_POWER] = power.longValue();
+        }
+    }
+
+    /**
+     * Converts a decimal significand and exponent to the nearest double using
+     * the Eisel-Lemire algorithm (Lemire, "Number Parsing at a Gigabyte per
+     * Second", 2021).
+     *
+     * @param significand the decimal significand, which must not be zero
+     * @param exponent the decimal exponent
+     * @return the positive double, or NaN if the result cannot be determined
+     *         this way and a slower method must be used
+     */
+    private static double eiselLemire(long significand, final int exponent) {
+        if (exponent < SMALLEST_POWER) {
+            return 0.0;
+        }
+        if (exponent > LARGEST_POWER) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        final int index = exponent - SMALLEST_POWER;
+        int leadingZeros = Long.numberOfLeadingZeros(significand);
+        significand <<= leadingZeros;
+
+        final long factor = POWERS_OF_FIVE_HIGH[index];
+        long lower = significand * factor;
+        long upper = multiplyHigh(significand, factor);
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + significand, lower) < 0) {
+            // The product might be inexact, so use the low half of the power
+            final long factorLow = POWERS_OF_FIVE_LOW[index];
+            final long productLow = significand * factorLow;
+            final long productMiddle = lower + multiplyHigh(significand, factorLow);
+            if (Long.compareUnsigned(productMiddle, lower) < 0) {
+                upper++;
+            }
+            if (productMiddle + 1 == 0 && (upper & 0x1FF) == 0x1FF
+                    && Long.compareUnsigned(productLow + significand, productLow) < 0) {
+                return Double.NaN;
+            }
+            lower = productMiddle;
+        }
+
+        final long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        leadingZeros += (int) (1 ^ upperBit);
+
+        // Exactly halfway between two doubles, which needs more precision to
+        // round correctly
+        if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+            return Double.NaN;
+        }
+
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= (1L << 53)) {
+            mantissa = 1L << 52;
+            leadingZeros--;
+        }
+        mantissa &= ~(1L << 52);
+
+        final long biasedExponent = (((152170L + 65536L) * exponent) >> 16) + 1024 + 63 - leadingZeros;
+        if (biasedExponent < 1 || biasedExponent > 2046) {
+            // Subnormal or infinite
+            return Double.NaN;
+        }
+        return Double.longBitsToDouble(mantissa | (biasedExponent << 52));
+    }
+
+    /**
+     * Calculates the high 64 bits of the unsigned 128-bit product of two
+     * longs.
+     */
+    private static long multiplyHigh(final long a, final long b) {
+        final long a0 = a & 0xFFFFFFFFL;
+        final long a1 = a >>> 32;
+        final long b0 = b & 0xFFFFFFFFL;
+        final long b1 = b >>> 32;
+        final long p00 = a0 * b0;
+        final long p01 = a0 * b1;
+        final long p10 = a1 * b0;
+        final long p11 = a1 * b1;
+        final long middle = (p00 >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+}
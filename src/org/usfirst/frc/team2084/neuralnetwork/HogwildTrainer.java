@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Trains a {@link Network} with asynchronous stochastic gradient descent, in
+ * the style of Hogwild. Each thread of a {@link ForkJoinPool} trains on its
+ * own share of the samples one at a time, like
+ * {@link Network#feedForward(double...)} followed by
+ * {@link Network#backPropagation(double...)}, but with its own outputs,
+ * derivatives and gradients. Every thread writes its weight updates straight
+ * into the weights of the network without any locking, so updates of the same
+ * weight by two threads at once can overwrite each other, and a thread can
+ * read weights that another thread has only partly updated.
+ *
+ * When each sample only affects a small part of the error, these races rarely
+ * matter and training converges about as fast per epoch as on one thread,
+ * and there is no reduction step or barrier between samples. How much faster
+ * an epoch runs with more threads has not been measured, and depends on how
+ * often the threads write to the same cache lines of the weights. Unlike
+ * {@link ParallelTrainer}, the results are not reproducible. The per-weight
+ * state of the optimizer of the network is updated without locking as well,
+ * so the adaptive optimizers may lose a few updates of their averages, but
+ * every step is counted.
+ *
+ * The network itself must not be used for anything else while an epoch is
+ * running. Its layer pool is not used, and only the loss and epochs are
+ * recorded in its {@link TrainingMetrics}, not the layer timings.
+ *
+ * @author Ben Wolsieffer
+ */
+public class HogwildTrainer {
+
+    private final Network network;
+    private final ForkJoinPool pool;
+    /**
+     * The activations of each thread.
+     */
+    private final Worker[] workers;
+
+    /**
+     * Creates a trainer for the specified network that uses the common
+     * {@link ForkJoinPool}.
+     *
+     * @param network the network to train
+     */
+    public HogwildTrainer(final Network network) {
+        this(network, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a trainer for the specified network that uses the specified
+     * pool. The samples of each epoch are split into as many shares as the
+     * pool has threads.
+     *
+     * @param network the network to train
+     * @param pool the pool to run on
+     */
+    public HogwildTrainer(final Network network, final ForkJoinPool pool) {
+        this.network = network;
+        this.pool = pool;
+
+        workers = new Worker[pool.getParallelism()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(network.getTopology());
+        }
+    }
+
+    /**
+     * Trains the network on one epoch of samples. The samples are split into
+     * contiguous shares, one per thread, so they should be shuffled
+     * beforehand if they are sorted.
+     *
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     * @return the average error of the samples, as calculated before each
+     *         update
+     */
+    public double trainEpoch(final double[][] inputs, final double[][] targetOutputs) {
+        return trainEpoch(inputs, targetOutputs, 0, inputs.length);
+    }
+
+    /**
+     * Trains the network on one epoch of a range of samples. This is the same
+     * as {@link #trainEpoch(double[][], double[][])}, but it allows the
+     * samples to be taken from a larger set without copying them.
+     *
+     * @param inputs the input values of each sample
+     * @param targetOutputs the target output values of each sample
+     * @param from the index of the first sample (inclusive)
+     * @param to the index of the last sample (exclusive)
+     * @return the average error of the samples, as calculated before each
+     *         update
+     */
+    public double trainEpoch(final double[][] inputs, final double[][] targetOutputs, final int from,
+            final int to) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        final int count = to - from;
+        if (count <= 0) {
+            return 0.0;
+        }
+        Batch.checkSamples(network.getTopology(), inputs, targetOutputs, from, to);
+
+        final TrainingMetrics metrics = network.getMetrics();
+        if (metrics != null) {
+            metrics.startEpoch();
+        }
+
+        final int parts = Math.min(workers.length, count);
+        final Share[] shares = new Share[parts];
+        for (int p = 0; p < parts; p++) {
+            shares[p] = new Share(workers[p], inputs, targetOutputs, from + (int) ((long) count * p / parts),
+                    from + (int) ((long) count * (p + 1) / parts));
+        }
+        try {
+            pool.invoke(new Step(shares));
+        } finally {
+            // Nothing else can use the weights until the epoch is over, so
+            // the version is bumped once instead of by every thread for every
+            // sample
+            network.weightsChanged();
+        }
+
+        double error = 0.0;
+        for (final Share share : shares) {
+            error += share.error;
+        }
+        if (metrics != null) {
+            metrics.recordLoss(error, count);
+            metrics.endEpoch();
+        }
+        return error / count;
+    }
+
+    /**
+     * Gets the network that is trained.
+     *
+     * @return the network
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * The outputs, derivatives and gradients of one sample, laid out like
+     * those of {@link Network}.
+     */
+    private static class Worker {
+
+        final double[][] outputs;
+        final double[][] derivatives;
+        final double[][] gradients;
+
+        Worker(final int[] topology) {
+            outputs = new double[topology.length][];
+            derivatives = new double[topology.length][];
+            gradients = new double[topology.length][];
+            for (int l = 0; l < topology.length; l++) {
+                outputs[l] = new double[topology[l] + 1];
+                derivatives[l] = new double[topology[l] + 1];
+                gradients[l] = new double[topology[l] + 1];
+                // Bias neuron
+                outputs[l][topology[l]] = 1.0;
+            }
+        }
+    }
+
+    /**
+     * Starts the share of each thread.
+     */
+    @SuppressWarnings("serial")
+    private static class Step extends RecursiveAction {
+
+        private final Share[] shares;
+
+        Step(final Share[] shares) {
+            this.shares = shares;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(shares);
+        }
+    }
+
+    /**
+     * Trains on a range of samples one at a time, using the activations of
+     * one worker.
+     */
+    @SuppressWarnings("serial")
+    private class Share extends RecursiveAction {
+
+        private final Worker worker;
+        private final double[][] inputs;
+        private final double[][] targetOutputs;
+        private final int from;
+        private final int to;
+        /**
+         * The sum of the errors of the samples, which is written when the
+         * share is done.
+         */
+        double error;
+
+        Share(final Worker worker, final double[][] inputs, final double[][] targetOutputs, final int from,
+                final int to) {
+            this.worker = worker;
+            this.inputs = inputs;
+            this.targetOutputs = targetOutputs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            final int[] topology = network.getTopology();
+            final int outputLayer = topology.length - 1;
+            final double[][] outputs = worker.outputs;
+            final double[][] derivatives = worker.derivatives;
+            final double[][] gradients = worker.gradients;
+            final Optimizer optimizer = network.getOptimizer();
+
+            double sum = 0.0;
+            for (int s = from; s < to; s++) {
+                System.arraycopy(inputs[s], 0, outputs[0], 0, topology[0]);
+                for (int l = 1; l <= outputLayer; l++) {
+                    network.forwardLayer(outputs, derivatives, l, 0, topology[l]);
+                }
+
+                sum += network.outputGradients(outputs[outputLayer], derivatives[outputLayer],
+                        gradients[outputLayer], targetOutputs[s]);
+                for (int l = outputLayer - 1; l > 0; l--) {
+                    network.backwardLayer(derivatives, gradients, l, 0, topology[l]);
+                }
+
+                optimizer.startStep();
+                for (int l = outputLayer; l > 0; l--) {
+                    network.updateLayer(outputs, gradients, l, 0, topology[l]);
+                }
+            }
+            error = sum;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the outputs of a model for recently seen inputs, for control loops
+ * that feed the same or nearly the same inputs again and again. Each input is
+ * rounded to a multiple of a resolution, and the outputs are calculated for
+ * the rounded inputs, so inputs that round to the same values always get the
+ * same outputs, whether or not they were cached. A resolution of 0 only
+ * matches inputs that are exactly the same.
+ *
+ * The cache holds a fixed number of entries, and when it is full, an entry is
+ * evicted using the CLOCK algorithm: entries that have been used since the
+ * hand last passed them get a second chance. The entries are stored in
+ * primitive arrays and found with an open addressing hash table, so a lookup
+ * does not allocate anything.
+ *
+ * A cache in front of a {@link Network} is cleared automatically whenever the
+ * weights of the network change, so it can be used while the network is being
+ * trained, although it only helps between changes. The network is only fed
+ * forward on a miss, so {@link Network#feedForward(double...)} must still be
+ * called before back-propagating the current inputs. A cache in front of any
+ * other {@link Predictor} assumes that its outputs never change, unless
+ * {@link #invalidate()} is called.
+ *
+ * A cache must only be used by one thread at a time, and a cache in front of
+ * a network must be used on the thread that trains it.
+ *
+ * @author Ben Wolsieffer
+ */
+public class InferenceCache {
+
+    /**
+     * The value of {@link #slotGenerations} of a slot that has never been
+     * used or has been emptied.
+     */
+    private static final int EMPTY = 0;
+
+    private final Predictor model;
+    private final Network network;
+    private final int inputSize;
+    private final int outputSize;
+    private final double resolution;
+    private final int capacity;
+
+    /**
+     * The hash table, which holds the index of an entry in each used slot.
+     * The length is a power of two at least twice the capacity.
+     */
+    private final int[] slots;
+    /**
+     * The generation each slot was filled in. A slot is only used if this is
+     * the current generation, so the whole table can be emptied by starting a
+     * new generation.
+     */
+    private final int[] slotGenerations;
+    private final int mask;
+
+    /**
+     * The rounded inputs of each entry, {@link #inputSize} values per entry.
+     */
+    private final long[] keys;
+    /**
+     * The hash of the rounded inputs of each entry.
+     */
+    private final int[] hashes;
+    /**
+     * The outputs of each entry, {@link #outputSize} values per entry.
+     */
+    private final double[] values;
+    /**
+     * Whether each entry has been used since the clock hand last passed it.
+     */
+    private final boolean[] referenced;
+
+    /**
+     * The rounded inputs of the current lookup.
+     */
+    private final long[] key;
+    /**
+     * The inputs that the outputs are calculated for.
+     */
+    private final double[] roundedInputs;
+
+    private int generation = EMPTY + 1;
+    private int size;
+    private int hand;
+    private long weightVersion;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache in front of a model whose outputs never change.
+     *
+     * @param model the model to calculate the outputs with
+     * @param resolution the resolution to round the inputs to, or 0 to only
+     *        match exactly the same inputs
+     * @param capacity the maximum number of entries
+     */
+    public InferenceCache(final Predictor model, final double resolution, final int capacity) {
+        this(model, null, model.getTopology(), resolution, capacity);
+    }
+
+    /**
+     * Creates a cache in front of a network, which is cleared whenever its
+     * weights change.
+     *
+     * @param network the network to calculate the outputs with
+     * @param resolution the resolution to round the inputs to, or 0 to only
+     *        match exactly the same inputs
+     * @param capacity the maximum number of entries
+     */
+    public InferenceCache(final Network network, final double resolution, final int capacity) {
+        this(null, network, network.getTopology(), resolution, capacity);
+        weightVersion = network.getWeightVersion();
+    }
+
+    private InferenceCache(final Predictor model, final Network network, final int[] topology,
+            final double resolution, final int capacity) {
+        if (!(resolution >= 0) || Double.isInfinite(resolution)) {
+            throw new IllegalArgumentException("resolution must be a finite number >= 0.");
+        }
+        if (capacity < 1 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^29.");
+        }
+        this.model = model;
+        this.network = network;
+        this.resolution = resolution;
+        this.capacity = capacity;
+        inputSize = topology[0];
+        outputSize = topology[topology.length - 1];
+
+        final int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        slots = new int[tableSize];
+        slotGenerations = new int[tableSize];
+        mask = tableSize - 1;
+        keys = new long[capacity * inputSize];
+        hashes = new int[capacity];
+        values = new double[capacity * outputSize];
+        referenced = new boolean[capacity];
+        key = new long[inputSize];
+        roundedInputs = new double[inputSize];
+    }
+
+    /**
+     * Gets the outputs for the specified inputs, from the cache if they have
+     * been calculated for inputs that round to the same values, or from the
+     * model otherwise.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    public void predict(final double[] inputs, final double[] outputs) {
+        if (inputs.length != inputSize) {
+            throw new IllegalArgumentException("inputs needs to be the same size as the input layer - bias");
+        }
+        if (outputs.length != outputSize) {
+            throw new IllegalArgumentException("outputs needs to be the same size as the output layer - bias");
+        }
+        if (network != null) {
+            final long version = network.getWeightVersion();
+            if (version != weightVersion) {
+                weightVersion = version;
+                invalidate();
+            }
+        }
+
+        final int hash = round(inputs);
+        int slot = hash & mask;
+        while (slotGenerations[slot] == generation) {
+            final int entry = slots[slot];
+            if (hashes[entry] == hash && matches(entry)) {
+                hits++;
+                referenced[entry] = true;
+                System.arraycopy(values, entry * outputSize, outputs, 0, outputSize);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        misses++;
+        if (network != null) {
+            network.predict(roundedInputs, outputs);
+        } else {
+            model.predict(roundedInputs, outputs);
+        }
+
+        final int entry;
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = evict();
+            // Removing the entry may have moved the end of the probe sequence
+            slot = hash & mask;
+            while (slotGenerations[slot] == generation) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        slots[slot] = entry;
+        slotGenerations[slot] = generation;
+        hashes[entry] = hash;
+        referenced[entry] = false;
+        System.arraycopy(key, 0, keys, entry * inputSize, inputSize);
+        System.arraycopy(outputs, 0, values, entry * outputSize, outputSize);
+    }
+
+    /**
+     * Rounds the inputs into {@link #key} and {@link #roundedInputs}.
+     *
+     * @return the hash of the rounded inputs
+     */
+    private int round(final double[] inputs) {
+        long hash = 0;
+        for (int i = 0; i < inputSize; i++) {
+            final long value;
+            if (resolution > 0) {
+                value = Math.round(inputs[i] / resolution);
+                roundedInputs[i] = value * resolution;
+            } else {
+                // Adding 0 turns -0.0 into 0.0, so they match
+                final double input = inputs[i] + 0.0;
+                value = Double.doubleToLongBits(input);
+                roundedInputs[i] = input;
+            }
+            key[i] = value;
+            hash = mix(hash + value);
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Scrambles the bits of a hash, so rounded inputs that are close together
+     * do not end up in neighboring slots.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Checks whether an entry holds the rounded inputs of the current lookup.
+     */
+    private boolean matches(final int entry) {
+        final int offset = entry * inputSize;
+        for (int i = 0; i < inputSize; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses an entry to evict by advancing the clock hand past every entry
+     * that has been used since it was last passed, and removes it from the
+     * hash table.
+     *
+     * @return the index of the evicted entry
+     */
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        final int entry = hand;
+        hand = hand + 1 == capacity ? 0 : hand + 1;
+        evictions++;
+
+        int slot = hashes[entry] & mask;
+        while (slots[slot] != entry) {
+            slot = (slot + 1) & mask;
+        }
+        // Move back any later entries of the probe sequence that would no
+        // longer be found once this slot is empty
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slotGenerations[next] != generation) {
+                break;
+            }
+            final int home = hashes[slots[next]] & mask;
+            if (slot <= next ? slot < home && home <= next : slot < home || home <= next) {
+                continue;
+            }
+            slots[slot] = slots[next];
+            slot = next;
+        }
+        slotGenerations[slot] = EMPTY;
+        return entry;
+    }
+
+    /**
+     * Removes every entry from the cache. This is done automatically when the
+     * weights of a network change, but must be called if the outputs of any
+     * other model change.
+     */
+    public void invalidate() {
+        generation++;
+        if (generation == EMPTY) {
+            // The generation wrapped around, so old slots could look current
+            Arrays.fill(slotGenerations, EMPTY);
+            generation = EMPTY + 1;
+        }
+        size = 0;
+        hand = 0;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Gets the number of lookups that were found in the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that had to be calculated by the model.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of entries that were evicted to make room for new ones.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the fraction of lookups that were found in the cache.
+     *
+     * @return the hit rate, or 0 if there have not been any lookups
+     */
+    public double getHitRate() {
+        final long lookups = hits + misses;
+        return lookups > 0 ? (double) hits / lookups : 0.0;
+    }
+
+    /**
+     * Gets the number of entries in the cache.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the maximum number of entries in the cache.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the resolution that the inputs are rounded to.
+     *
+     * @return the resolution, or 0 if only exact inputs match
+     */
+    public double getResolution() {
+        return resolution;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * A frozen copy of a {@link Network} that can only be used to calculate
+ * outputs. The weights are copied when the model is created and are never
+ * modified, and the intermediate layer outputs are kept in {@link Scratch}
+ * buffers instead of in the model, so any number of threads can call
+ * {@link #predict(double[], double[])} on the same instance at the same time.
+ * Later training of the original network does not affect the model.
+ *
+ * @author Ben Wolsieffer
+ */
+public final class InferenceModel implements Predictor {
+
+    /**
+     * Buffers that hold the outputs of each layer while calculating a
+     * prediction. A scratch object can be reused for any number of
+     * predictions, but it must only be used by one thread at a time.
+     */
+    public static final class Scratch {
+
+        private final double[][] outputs;
+
+        private Scratch(final int[] topology) {
+            outputs = new double[topology.length][];
+            for (int l = 0; l < topology.length; l++) {
+                outputs[l] = new double[topology[l] + 1];
+                // Bias neuron
+                outputs[l][topology[l]] = 1.0;
+            }
+        }
+    }
+
+    private final int[] topology;
+    private final TransferFunction transferFunction;
+    /**
+     * The weights of a model with {@link Precision#DOUBLE}, or null.
+     */
+    private final double[][] weights;
+    /**
+     * The weights of a model with {@link Precision#FLOAT}, or null.
+     */
+    private final float[][] floatWeights;
+    /**
+     * Scratch buffers for each thread that calls
+     * {@link #predict(double[], double[])} without providing its own.
+     */
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * Creates an inference model from the current weights of a network. The
+     * transfer function is shared with the network, so it must not have any
+     * mutable state. The weights are kept in the same precision as they are in
+     * the network.
+     *
+     * @param network the network to copy
+     */
+    public InferenceModel(final Network network) {
+        topology = network.getTopology().clone();
+        transferFunction = network.getTransferFunction();
+        if (network.floatWeights != null) {
+            weights = null;
+            floatWeights = new float[network.floatWeights.length][];
+            for (int l = 0; l < floatWeights.length; l++) {
+                floatWeights[l] = network.floatWeights[l].clone();
+            }
+        } else {
+            floatWeights = null;
+            weights = new double[network.weights.length][];
+            for (int l = 0; l < weights.length; l++) {
+                weights[l] = network.weights[l].clone();
+            }
+        }
+    }
+
+    /**
+     * Overwrites the weights of the model with the current weights of the
+     * network it was created from. This breaks the promise that the model
+     * never changes, so it is only used by {@link WeightPublisher} on models
+     * that no other thread can be using.
+     *
+     * @param network the network the model was created from
+     */
+    void copyWeights(final Network network) {
+        if (floatWeights != null) {
+            for (int l = 0; l < floatWeights.length; l++) {
+                System.arraycopy(network.floatWeights[l], 0, floatWeights[l], 0, floatWeights[l].length);
+            }
+        } else {
+            for (int l = 0; l < weights.length; l++) {
+                System.arraycopy(network.weights[l], 0, weights[l], 0, weights[l].length);
+            }
+        }
+    }
+
+    /**
+     * Creates a new set of scratch buffers for this model.
+     *
+     * @return the new scratch buffers
+     */
+    public Scratch newScratch() {
+        return new Scratch(topology);
+    }
+
+    /**
+     * Calculates the outputs of the model using scratch buffers that are cached
+     * for the calling thread.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    @Override
+    public void predict(final double[] inputs, final double[] outputs) {
+        predict(inputs, outputs, scratch.get());
+    }
+
+    /**
+     * Calculates the outputs of the model using the specified scratch buffers.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     * @param scratch the scratch buffers to use, which must have been created
+     *        by {@link #newScratch()} on this model
+     */
+    public void predict(final double[] inputs, final double[] outputs, final Scratch scratch) {
+        final int outputLayer = topology.length - 1;
+        if (inputs.length != topology[0]) {
+            throw new IllegalArgumentException("inputs needs to be the same size as the input layer - bias");
+        }
+        if (outputs.length != topology[outputLayer]) {
+            throw new IllegalArgumentException("outputs needs to be the same size as the output layer - bias");
+        }
+
+        final double[][] layers = scratch.outputs;
+        System.arraycopy(inputs, 0, layers[0], 0, inputs.length);
+        for (int l = 1; l <= outputLayer; l++) {
+            if (floatWeights != null) {
+                Kernels.activate(floatWeights[l - 1], layers[l - 1], topology[l - 1] + 1, layers[l], topology[l],
+                        transferFunction);
+            } else {
+                Kernels.activate(weights[l - 1], layers[l - 1], topology[l - 1] + 1, layers[l], topology[l],
+                        transferFunction);
+            }
+        }
+        System.arraycopy(layers[outputLayer], 0, outputs, 0, outputs.length);
+    }
+
+    /**
+     * Calculates the outputs of the model and returns them in a new array.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @return the output values
+     */
+    public double[] predict(final double... inputs) {
+        final double[] outputs = new double[topology[topology.length - 1]];
+        predict(inputs, outputs);
+        return outputs;
+    }
+
+    /**
+     * Gets the transfer function of the model.
+     *
+     * @return the transfer function
+     */
+    public TransferFunction getTransferFunction() {
+        return transferFunction;
+    }
+
+    /**
+     * Gets the precision that the weights of the model are stored in.
+     *
+     * @return the precision of the weights
+     */
+    public Precision getPrecision() {
+        return floatWeights != null ? Precision.FLOAT : Precision.DOUBLE;
+    }
+
+    /**
+     * Gets the topology of the model in the form of an int[], with each element
+     * containing the size of a layer.
+     *
+     * @return a copy of the topology of the model
+     */
+    @Override
+    public int[] getTopology() {
+        return topology.clone();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * The vector operations that {@link Kernels} are built from. The default
+ * implementation is plain Java, but if the library was built with the
+ * {@code vector} Maven profile and is running on a JVM with the
+ * {@code jdk.incubator.vector} module enabled (using
+ * {@code --add-modules jdk.incubator.vector}), an implementation that uses
+ * explicit SIMD instructions is loaded instead.
+ *
+ * The backend can be forced to the scalar one by setting the
+ * {@value #PROPERTY} system property to {@code scalar}.
+ *
+ * @author Ben Wolsieffer
+ */
+interface KernelBackend {
+
+    /**
+     * The system property that selects the backend.
+     */
+    static final String PROPERTY = "neuralnetwork.kernels";
+    /**
+     * The class of the SIMD backend, which is only present if it was built
+     * with the {@code vector} profile.
+     */
+    static final String VECTOR_BACKEND = "org.usfirst.frc.team2084.neuralnetwork.VectorKernelBackend";
+
+    /**
+     * Calculates the dot product of a row of a weight matrix and a vector.
+     *
+     * @param weights the weight matrix
+     * @param row the index of the start of the row
+     * @param inputs the vector
+     * @param offset the index of the start of the vector
+     * @param length the length of the row
+     * @return the dot product
+     */
+    public double dot(double[] weights, int row, double[] inputs, int offset, int length);
+
+    /**
+     * Single precision version of
+     * {@link #dot(double[], int, double[], int, int)}.
+     */
+    public double dot(float[] weights, int row, double[] inputs, int offset, int length);
+
+    /**
+     * Calculates the dot products of a row of a weight matrix and four vectors
+     * at once, so each weight is only loaded once for all of them. Each
+     * product is summed in the same order as
+     * {@link #dot(double[], int, double[], int, int)}, so the results are
+     * exactly the same.
+     *
+     * @param weights the weight matrix
+     * @param row the index of the start of the row
+     * @param inputs the vectors, one after another
+     * @param offset the index of the start of the first vector
+     * @param stride the distance between the starts of the vectors
+     * @param length the length of the row
+     * @param sums the array to store the four dot products in
+     */
+    public void dot4(double[] weights, int row, double[] inputs, int offset, int stride, int length,
+            double[] sums);
+
+    /**
+     * Single precision version of
+     * {@link #dot4(double[], int, double[], int, int, int, double[])}.
+     */
+    public void dot4(float[] weights, int row, double[] inputs, int offset, int stride, int length,
+            double[] sums);
+
+    /**
+     * Adds a row of a matrix, multiplied by a scalar, to a vector. This is
+     * used for the transposed product in back-propagation and for summing
+     * weight gradients.
+     *
+     * @param scale the scalar
+     * @param values the matrix
+     * @param row the index of the start of the row
+     * @param sums the vector to add to
+     * @param offset the index of the start of the vector
+     * @param length the length of the row
+     */
+    public void axpy(double scale, double[] values, int row, double[] sums, int offset, int length);
+
+    /**
+     * Single precision version of
+     * {@link #axpy(double, double[], int, double[], int, int)}.
+     */
+    public void axpy(double scale, float[] values, int row, double[] sums, int offset, int length);
+
+    /**
+     * Updates a row of a weight matrix using momentum. Each delta weight is
+     * set to {@code rate * inputs[i] + momentum * deltaWeights[i]}, and then
+     * added to its weight.
+     *
+     * @param weights the weight matrix
+     * @param deltaWeights the previous change of each weight
+     * @param row the index of the start of the row
+     * @param inputs the outputs of the previous layer
+     * @param length the length of the row
+     * @param rate the learning rate multiplied by the gradient of the neuron
+     * @param momentum the learning momentum
+     */
+    public void update(double[] weights, double[] deltaWeights, int row, double[] inputs, int length, double rate,
+            double momentum);
+
+    /**
+     * Single precision version of
+     * {@link #update(double[], double[], int, double[], int, double, double)}.
+     */
+    public void update(float[] weights, float[] deltaWeights, int row, double[] inputs, int length, double rate,
+            double momentum);
+
+    /**
+     * Loads the SIMD backend if it is available and has not been disabled,
+     * or the scalar one otherwise.
+     *
+     * @return the backend
+     */
+    public static KernelBackend load() {
+        if (!"scalar".equals(System.getProperty(PROPERTY))) {
+            try {
+                return (KernelBackend) Class.forName(VECTOR_BACKEND).newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // The backend was not built, the JVM is too old for it or
+                // the incubator module is not enabled
+            }
+        }
+        return new Scalar();
+    }
+
+    public static class Scalar implements KernelBackend {
+
+        @Override
+        public double dot(double[] weights, int row, double[] inputs, int offset, int length) {
+            double sum = 0.0;
+            for (int i = 0; i < length; i++) {
+                sum += weights[row + i] * inputs[offset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public double dot(float[] weights, int row, double[] inputs, int offset, int length) {
+            double sum = 0.0;
+            for (int i = 0; i < length; i++) {
+                sum += weights[row + i] * inputs[offset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public void dot4(double[] weights, int row, double[] inputs, int offset, int stride, int length,
+                double[] sums) {
+            double sum0 = 0.0;
+            double sum1 = 0.0;
+            double sum2 = 0.0;
+            double sum3 = 0.0;
+            for (int i = 0; i < length; i++) {
+                final double weight = weights[row + i];
+                final int input = offset + i;
+                sum0 += weight * inputs[input];
+                sum1 += weight * inputs[input + stride];
+                sum2 += weight * inputs[input + 2 * stride];
+                sum3 += weight * inputs[input + 3 * stride];
+            }
+            sums[0] = sum0;
+            sums[1] = sum1;
+            sums[2] = sum2;
+            sums[3] = sum3;
+        }
+
+        @Override
+        public void dot4(float[] weights, int row, double[] inputs, int offset, int stride, int length,
+                double[] sums) {
+            double sum0 = 0.0;
+            double sum1 = 0.0;
+            double sum2 = 0.0;
+            double sum3 = 0.0;
+            for (int i = 0; i < length; i++) {
+                final double weight = weights[row + i];
+                final int input = offset + i;
+                sum0 += weight * inputs[input];
+                sum1 += weight * inputs[input + stride];
+                sum2 += weight * inputs[input + 2 * stride];
+                sum3 += weight * inputs[input + 3 * stride];
+            }
+            sums[0] = sum0;
+            sums[1] = sum1;
+            sums[2] = sum2;
+            sums[3] = sum3;
+        }
+
+        @Override
+        public void axpy(double scale, double[] values, int row, double[] sums, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                sums[offset + i] += values[row + i] * scale;
+            }
+        }
+
+        @Override
+        public void axpy(double scale, float[] values, int row, double[] sums, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                sums[offset + i] += values[row + i] * scale;
+            }
+        }
+
+        @Override
+        public void update(double[] weights, double[] deltaWeights, int row, double[] inputs, int length,
+                double rate, double momentum) {
+            for (int i = 0; i < length; i++) {
+                // Individual input, magnified by the gradient and train rate,
+                // plus a fraction of the previous delta weight
+                final double deltaWeight = rate * inputs[i] + momentum * deltaWeights[row + i];
+                deltaWeights[row + i] = deltaWeight;
+                weights[row + i] += deltaWeight;
+            }
+        }
+
+        @Override
+        public void update(float[] weights, float[] deltaWeights, int row, double[] inputs, int length,
+                double rate, double momentum) {
+            for (int i = 0; i < length; i++) {
+                final double deltaWeight = rate * inputs[i] + momentum * deltaWeights[row + i];
+                deltaWeights[row + i] = (float) deltaWeight;
+                weights[row + i] = (float) (weights[row + i] + deltaWeight);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "scalar";
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * The inner loops of the network, written against the flat per-layer weight
+ * matrices kept by {@link Network}. Each weight matrix connects layer {@code l}
+ * to layer {@code l + 1} and is stored row-major with one row per neuron in
+ * layer {@code l + 1}. Each row holds the weights of the connections coming
+ * from every neuron in layer {@code l}, including its bias neuron, so the
+ * row length (the stride) is {@code topology[l] + 1}.
+ *
+ * Every kernel that reads or writes weights also has a version for
+ * {@link Precision#FLOAT} networks, which takes {@code float[]} weight
+ * matrices. These widen each weight to a double as it is loaded, so the sums
+ * are accumulated with the same precision as in the {@code double} versions
+ * and only the storage of the weights is narrowed. This means the float
+ * kernels do the same number of double multiplications as the double ones,
+ * even with a SIMD backend: they only save memory and bandwidth.
+ *
+ * The inner loops themselves are implemented by a {@link KernelBackend},
+ * which may use SIMD instructions if they are available.
+ *
+ * @author Ben Wolsieffer
+ */
+final class Kernels {
+
+    /**
+     * The implementation of the vector operations in the inner loops.
+     */
+    private static final KernelBackend BACKEND = KernelBackend.load();
+
+    private Kernels() {
+    }
+
+    /**
+     * Gets the name of the backend that the kernels use, either
+     * {@code scalar} or {@code vector}.
+     *
+     * @return the name of the backend
+     */
+    static String getBackend() {
+        return BACKEND.toString();
+    }
+
+    /**
+     * Calculates the outputs of a range of neurons in a layer from the outputs
+     * of the previous layer, along with the derivative of the transfer
+     * function for each neuron, which is needed for back-propagation.
+     *
+     * @param weights the weight matrix between the two layers
+     * @param inputs the outputs of the previous layer, including its bias
+     * @param stride the length of {@code inputs} (previous layer size + 1)
+     * @param derivatives the array to store the transfer function derivatives
+     *        in
+     * @param outputs the array to store the neuron outputs in
+     * @param from the index of the first neuron to calculate (inclusive)
+     * @param to the index of the last neuron to calculate (exclusive)
+     * @param transferFunction the transfer function of the layer
+     */
+    static void forward(final double[] weights, final double[] inputs, final int stride,
+            final double[] derivatives, final double[] outputs, final int from, final int to,
+            final TransferFunction transferFunction) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            final double output = transferFunction.calculate(sum);
+            outputs[j] = output;
+            derivatives[j] = transferFunction.derivative(sum, output);
+        }
+    }
+
+    /**
+     * Calculates the outputs of a range of neurons in a layer from the outputs
+     * of the previous layer, and stores the weighted input sum of each neuron.
+     * The sums can be turned into the derivatives needed for back-propagation
+     * with {@link #derivatives(double[], double[], int, TransferFunction)},
+     * so the derivatives are only calculated if the network is trained.
+     *
+     * @param weights the weight matrix between the two layers
+     * @param inputs the outputs of the previous layer, including its bias
+     * @param stride the length of {@code inputs} (previous layer size + 1)
+     * @param sums the array to store the weighted input sums in
+     * @param outputs the array to store the neuron outputs in
+     * @param from the index of the first neuron to calculate (inclusive)
+     * @param to the index of the last neuron to calculate (exclusive)
+     * @param transferFunction the transfer function of the layer
+     */
+    static void forwardSums(final double[] weights, final double[] inputs, final int stride, final double[] sums,
+            final double[] outputs, final int from, final int to, final TransferFunction transferFunction) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            sums[j] = sum;
+            outputs[j] = transferFunction.calculate(sum);
+        }
+    }
+
+    /**
+     * Replaces the weighted input sums of a layer, as stored by
+     * {@link #forwardSums(double[], double[], int, double[], double[], int, int, TransferFunction)},
+     * with the derivatives of the transfer function.
+     *
+     * @param values the weighted input sums, which are replaced by the
+     *        derivatives
+     * @param outputs the outputs calculated from the sums
+     * @param size the number of neurons in the layer, not including its bias
+     * @param transferFunction the transfer function of the layer
+     */
+    static void derivatives(final double[] values, final double[] outputs, final int size,
+            final TransferFunction transferFunction) {
+        for (int j = 0; j < size; j++) {
+            values[j] = transferFunction.derivative(values[j], outputs[j]);
+        }
+    }
+
+    /**
+     * Calculates the outputs of a layer from the outputs of the previous layer,
+     * without calculating the derivatives needed for back-propagation.
+     *
+     * @param weights the weight matrix between the two layers
+     * @param inputs the outputs of the previous layer, including its bias
+     * @param stride the length of {@code inputs} (previous layer size + 1)
+     * @param outputs the array to store the neuron outputs in
+     * @param size the number of neurons in the layer, not including its bias
+     * @param transferFunction the transfer function of the layer
+     */
+    static void activate(final double[] weights, final double[] inputs, final int stride, final double[] outputs,
+            final int size, final TransferFunction transferFunction) {
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            outputs[j] = transferFunction.calculate(sum);
+        }
+    }
+
+    /**
+     * Calculates the gradients of a range of neurons in a hidden layer by
+     * back-propagating the gradients of the next layer through the weight
+     * matrix between them. This walks the matrix row by row, so memory is read
+     * sequentially.
+     *
+     * @param weights the weight matrix between this layer and the next
+     * @param nextGradients the gradients of the next layer
+     * @param nextSize the number of neurons in the next layer, not including
+     *        its bias
+     * @param stride the row length of the weight matrix (size + 1)
+     * @param derivatives the transfer function derivatives of this layer
+     * @param gradients the array to store the gradients of this layer in
+     * @param from the index of the first neuron to calculate (inclusive)
+     * @param to the index of the last neuron to calculate (exclusive)
+     */
+    static void backward(final double[] weights, final double[] nextGradients, final int nextSize, final int stride,
+            final double[] derivatives, final double[] gradients, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            gradients[i] = 0.0;
+        }
+        for (int j = 0, row = 0; j < nextSize; j++, row += stride) {
+            BACKEND.axpy(nextGradients[j], weights, row + from, gradients, from, to - from);
+        }
+        for (int i = from; i < to; i++) {
+            gradients[i] *= derivatives[i];
+        }
+    }
+
+    /**
+     * Updates the weights coming into a range of neurons in a layer using the
+     * gradients of that layer, the learning rate and momentum.
+     *
+     * @param weights the weight matrix coming into the layer
+     * @param deltaWeights the previous change of each weight, used for
+     *        momentum
+     * @param inputs the outputs of the previous layer, including its bias
+     * @param stride the length of {@code inputs} (previous layer size + 1)
+     * @param gradients the gradients of the layer
+     * @param from the index of the first neuron to update (inclusive)
+     * @param to the index of the last neuron to update (exclusive)
+     * @param eta the learning rate
+     * @param momentum the learning momentum
+     */
+    static void update(final double[] weights, final double[] deltaWeights, final double[] inputs, final int stride,
+            final double[] gradients, final int from, final int to, final double eta, final double momentum) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            BACKEND.update(weights, deltaWeights, row, inputs, stride, eta * gradients[j], momentum);
+        }
+    }
+
+    /**
+     * Updates the weights coming into a range of neurons in a layer using an
+     * {@link Optimizer}. The gradient of each weight is its input multiplied
+     * by the gradient of its neuron.
+     *
+     * @param optimizer the optimizer that calculates the change of each weight
+     * @param layer the index of the weight matrix in the network
+     * @param weights the weight matrix coming into the layer
+     * @param inputs the outputs of the previous layer, including its bias
+     * @param stride the length of {@code inputs} (previous layer size + 1)
+     * @param gradients the gradients of the layer
+     * @param from the index of the first neuron to update (inclusive)
+     * @param to the index of the last neuron to update (exclusive)
+     */
+    static void update(final Optimizer optimizer, final int layer, final double[] weights, final double[] inputs,
+            final int stride, final double[] gradients, final int from, final int to) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double gradient = gradients[j];
+            for (int i = 0; i < stride; i++) {
+                weights[row + i] += optimizer.delta(layer, row + i, gradient * inputs[i]);
+            }
+        }
+    }
+
+    /**
+     * Batched version of
+     * {@link #forward(double[], double[], int, double[], double[], int, int, TransferFunction)}.
+     * Each row of the weight matrix is used for every sample in the batch
+     * before moving on to the next one, so it only has to be loaded from
+     * memory once per batch. The batch should be small enough that its inputs
+     * fit in cache.
+     *
+     * @param weights the weight matrix between the two layers
+     * @param inputs the outputs of the previous layer, one row of length
+     *        {@code stride} per sample
+     * @param stride the length of each input row (previous layer size + 1)
+     * @param derivatives the matrix to store the transfer function
+     *        derivatives in, one row of length {@code size} per sample
+     * @param outputs the matrix to store the outputs in, one row of length
+     *        {@code size + 1} per sample
+     * @param size the number of neurons in the layer, not including its bias
+     * @param count the number of samples in the batch
+     * @param transferFunction the transfer function of the layer
+     */
+    static void forwardBatch(final double[] weights, final double[] inputs, final int stride,
+            final double[] derivatives, final double[] outputs, final int size, final int count,
+            final TransferFunction transferFunction) {
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            for (int b = 0; b < count; b++) {
+                final int input = b * stride;
+                final double sum = BACKEND.dot(weights, row, inputs, input, stride);
+                final double output = transferFunction.calculate(sum);
+                outputs[b * (size + 1) + j] = output;
+                derivatives[b * size + j] = transferFunction.derivative(sum, output);
+            }
+        }
+    }
+
+    /**
+     * Batched version of
+     * {@link #activate(double[], double[], int, double[], int, TransferFunction)}.
+     * Each row of weights is applied to every sample in the batch before
+     * moving on to the next, so it is only loaded from memory once per batch,
+     * and to four samples at a time, so each weight loaded into a register is
+     * used four times.
+     *
+     * @param weights the weight matrix between the two layers
+     * @param inputs the outputs of the previous layer, one row of length
+     *        {@code stride} per sample
+     * @param stride the length of each input row (previous layer size + 1)
+     * @param outputs the matrix to store the outputs in, one row of length
+     *        {@code size + 1} per sample
+     * @param size the number of neurons in the layer, not including its bias
+     * @param count the number of samples in the batch
+     * @param transferFunction the transfer function of the layer
+     */
+    static void activateBatch(final double[] weights, final double[] inputs, final int stride,
+            final double[] outputs, final int size, final int count, final TransferFunction transferFunction) {
+        final double[] sums = new double[4];
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            int b = 0;
+            for (; b + 4 <= count; b += 4) {
+                BACKEND.dot4(weights, row, inputs, b * stride, stride, stride, sums);
+                for (int k = 0; k < 4; k++) {
+                    outputs[(b + k) * (size + 1) + j] = transferFunction.calculate(sums[k]);
+                }
+            }
+            for (; b < count; b++) {
+                final double sum = BACKEND.dot(weights, row, inputs, b * stride, stride);
+                outputs[b * (size + 1) + j] = transferFunction.calculate(sum);
+            }
+        }
+    }
+
+    /**
+     * Batched version of
+     * {@link #backward(double[], double[], int, int, double[], double[], int, int)}.
+     *
+     * @param weights the weight matrix between this layer and the next
+     * @param nextGradients the gradients of the next layer, one row of length
+     *        {@code nextSize} per sample
+     * @param nextSize the number of neurons in the next layer, not including
+     *        its bias
+     * @param stride the row length of the weight matrix (size + 1)
+     * @param derivatives the transfer function derivatives of this layer, one
+     *        row of length {@code size} per sample
+     * @param gradients the matrix to store the gradients of this layer in, one
+     *        row of length {@code size} per sample
+     * @param size the number of neurons in this layer, not including its bias
+     * @param count the number of samples in the batch
+     */
+    static void backwardBatch(final double[] weights, final double[] nextGradients, final int nextSize,
+            final int stride, final double[] derivatives, final double[] gradients, final int size,
+            final int count) {
+        final int length = size * count;
+        for (int i = 0; i < length; i++) {
+            gradients[i] = 0.0;
+        }
+        for (int j = 0, row = 0; j < nextSize; j++, row += stride) {
+            for (int b = 0; b < count; b++) {
+                final double gradient = nextGradients[b * nextSize + j];
+                BACKEND.axpy(gradient, weights, row, gradients, b * size, size);
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            gradients[i] *= derivatives[i];
+        }
+    }
+
+    /**
+     * Adds the weight gradients of a batch to an accumulator. The weight
+     * gradient of a connection is the output of its source neuron multiplied
+     * by the gradient of its destination neuron.
+     *
+     * @param weightGradients the accumulator, with the same layout as the
+     *        weight matrix
+     * @param inputs the outputs of the previous layer, one row of length
+     *        {@code stride} per sample
+     * @param stride the length of each input row (previous layer size + 1)
+     * @param gradients the gradients of the layer, one row of length
+     *        {@code size} per sample
+     * @param size the number of neurons in the layer, not including its bias
+     * @param count the number of samples in the batch
+     */
+    static void accumulateBatch(final double[] weightGradients, final double[] inputs, final int stride,
+            final double[] gradients, final int size, final int count) {
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            for (int b = 0; b < count; b++) {
+                final double gradient = gradients[b * size + j];
+                BACKEND.axpy(gradient, inputs, b * stride, weightGradients, row, stride);
+            }
+        }
+    }
+
+    /**
+     * Updates a weight matrix using accumulated weight gradients, then clears
+     * the accumulator.
+     *
+     * @param weights the weight matrix
+     * @param deltaWeights the previous change of each weight, used for
+     *        momentum
+     * @param weightGradients the accumulated weight gradients
+     * @param rate the learning rate divided by the number of accumulated
+     *        samples
+     * @param momentum the learning momentum
+     */
+    static void applyGradients(final double[] weights, final double[] deltaWeights, final double[] weightGradients,
+            final double rate, final double momentum) {
+        for (int i = 0; i < weights.length; i++) {
+            final double deltaWeight = rate * weightGradients[i] + momentum * deltaWeights[i];
+            deltaWeights[i] = deltaWeight;
+            weights[i] += deltaWeight;
+            weightGradients[i] = 0.0;
+        }
+    }
+
+    /**
+     * Updates a weight matrix with an {@link Optimizer} using accumulated
+     * weight gradients, then clears the accumulator.
+     *
+     * @param optimizer the optimizer that calculates the change of each weight
+     * @param layer the index of the weight matrix in the network
+     * @param weights the weight matrix
+     * @param weightGradients the accumulated weight gradients
+     * @param scale the reciprocal of the number of accumulated samples
+     */
+    static void applyGradients(final Optimizer optimizer, final int layer, final double[] weights,
+            final double[] weightGradients, final double scale) {
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] += optimizer.delta(layer, i, scale * weightGradients[i]);
+            weightGradients[i] = 0.0;
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #forward(double[], double[], int, double[], double[], int, int, TransferFunction)}.
+     */
+    static void forward(final float[] weights, final double[] inputs, final int stride,
+            final double[] derivatives, final double[] outputs, final int from, final int to,
+            final TransferFunction transferFunction) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            final double output = transferFunction.calculate(sum);
+            outputs[j] = output;
+            derivatives[j] = transferFunction.derivative(sum, output);
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #forwardSums(double[], double[], int, double[], double[], int, int, TransferFunction)}.
+     */
+    static void forwardSums(final float[] weights, final double[] inputs, final int stride, final double[] sums,
+            final double[] outputs, final int from, final int to, final TransferFunction transferFunction) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            sums[j] = sum;
+            outputs[j] = transferFunction.calculate(sum);
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #activate(double[], double[], int, double[], int, TransferFunction)}.
+     */
+    static void activate(final float[] weights, final double[] inputs, final int stride, final double[] outputs,
+            final int size, final TransferFunction transferFunction) {
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            final double sum = BACKEND.dot(weights, row, inputs, 0, stride);
+            outputs[j] = transferFunction.calculate(sum);
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #backward(double[], double[], int, int, double[], double[], int, int)}.
+     */
+    static void backward(final float[] weights, final double[] nextGradients, final int nextSize, final int stride,
+            final double[] derivatives, final double[] gradients, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            gradients[i] = 0.0;
+        }
+        for (int j = 0, row = 0; j < nextSize; j++, row += stride) {
+            BACKEND.axpy(nextGradients[j], weights, row + from, gradients, from, to - from);
+        }
+        for (int i = from; i < to; i++) {
+            gradients[i] *= derivatives[i];
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #update(double[], double[], double[], int, double[], int, int, double, double)}.
+     * The new weights and deltas are rounded to the nearest float.
+     */
+    static void update(final float[] weights, final float[] deltaWeights, final double[] inputs, final int stride,
+            final double[] gradients, final int from, final int to, final double eta, final double momentum) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            BACKEND.update(weights, deltaWeights, row, inputs, stride, eta * gradients[j], momentum);
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #forwardBatch(double[], double[], int, double[], double[], int, int, TransferFunction)}.
+     */
+    static void forwardBatch(final float[] weights, final double[] inputs, final int stride,
+            final double[] derivatives, final double[] outputs, final int size, final int count,
+            final TransferFunction transferFunction) {
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            for (int b = 0; b < count; b++) {
+                final int input = b * stride;
+                final double sum = BACKEND.dot(weights, row, inputs, input, stride);
+                final double output = transferFunction.calculate(sum);
+                outputs[b * (size + 1) + j] = output;
+                derivatives[b * size + j] = transferFunction.derivative(sum, output);
+            }
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #activateBatch(double[], double[], int, double[], int, int, TransferFunction)}.
+     */
+    static void activateBatch(final float[] weights, final double[] inputs, final int stride,
+            final double[] outputs, final int size, final int count, final TransferFunction transferFunction) {
+        final double[] sums = new double[4];
+        for (int j = 0, row = 0; j < size; j++, row += stride) {
+            int b = 0;
+            for (; b + 4 <= count; b += 4) {
+                BACKEND.dot4(weights, row, inputs, b * stride, stride, stride, sums);
+                for (int k = 0; k < 4; k++) {
+                    outputs[(b + k) * (size + 1) + j] = transferFunction.calculate(sums[k]);
+                }
+            }
+            for (; b < count; b++) {
+                final double sum = BACKEND.dot(weights, row, inputs, b * stride, stride);
+                outputs[b * (size + 1) + j] = transferFunction.calculate(sum);
+            }
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #backwardBatch(double[], double[], int, int, double[], double[], int, int)}.
+     */
+    static void backwardBatch(final float[] weights, final double[] nextGradients, final int nextSize,
+            final int stride, final double[] derivatives, final double[] gradients, final int size,
+            final int count) {
+        final int length = size * count;
+        for (int i = 0; i < length; i++) {
+            gradients[i] = 0.0;
+        }
+        for (int j = 0, row = 0; j < nextSize; j++, row += stride) {
+            for (int b = 0; b < count; b++) {
+                final double gradient = nextGradients[b * nextSize + j];
+                BACKEND.axpy(gradient, weights, row, gradients, b * size, size);
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            gradients[i] *= derivatives[i];
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #applyGradients(double[], double[], double[], double, double)}.
+     * The gradients are still accumulated as doubles, because they are summed
+     * over many samples.
+     */
+    static void applyGradients(final float[] weights, final float[] deltaWeights, final double[] weightGradients,
+            final double rate, final double momentum) {
+        for (int i = 0; i < weights.length; i++) {
+            final double deltaWeight = rate * weightGradients[i] + momentum * deltaWeights[i];
+            deltaWeights[i] = (float) deltaWeight;
+            weights[i] = (float) (weights[i] + deltaWeight);
+            weightGradients[i] = 0.0;
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #update(Optimizer, int, double[], double[], int, double[], int, int)}.
+     */
+    static void update(final Optimizer optimizer, final int layer, final float[] weights, final double[] inputs,
+            final int stride, final double[] gradients, final int from, final int to) {
+        for (int j = from, row = from * stride; j < to; j++, row += stride) {
+            final double gradient = gradients[j];
+            for (int i = 0; i < stride; i++) {
+                weights[row + i] = (float) (weights[row + i] + optimizer.delta(layer, row + i, gradient * inputs[i]));
+            }
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #applyGradients(Optimizer, int, double[], double[], double)}.
+     */
+    static void applyGradients(final Optimizer optimizer, final int layer, final float[] weights,
+            final double[] weightGradients, final double scale) {
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) (weights[i] + optimizer.delta(layer, i, scale * weightGradients[i]));
+            weightGradients[i] = 0.0;
+        }
+    }
+}
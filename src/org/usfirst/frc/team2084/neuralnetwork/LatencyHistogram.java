@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets whose width grows with
+ * the latency, so percentiles are accurate to within 1/8 of their value over
+ * the whole range of a {@code long}. Recording a latency does not allocate or
+ * lock, and latencies can be recorded and read by any number of threads at
+ * once.
+ *
+ * @author Ben Wolsieffer
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of each latency that select a bucket within its power
+     * of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param name the name of the histogram, which is used by
+     *        {@link #toString()}
+     */
+    public LatencyHistogram(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds, where negative values count as
+     *        0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long previous;
+        while (nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) {
+        }
+    }
+
+    /**
+     * Gets the bucket that a latency belongs in. Latencies below
+     * {@link #SUB_BUCKETS} have a bucket each, and every larger power of two
+     * is split into {@link #SUB_BUCKETS} buckets.
+     */
+    private static int bucket(final long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the largest latency that belongs in a bucket.
+     */
+    private static long highestInBucket(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Gets the number of latencies that have been recorded.
+     *
+     * @return the number of latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the mean of the recorded latencies.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n > 0 ? (double) sum.get() / n : 0.0;
+    }
+
+    /**
+     * Gets the largest recorded latency.
+     *
+     * @return the largest latency in nanoseconds, or 0 if nothing has been
+     *         recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets a percentile of the recorded latencies, rounded up to the top of
+     * its bucket.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds that the percentile of latencies are
+     *         less than or equal to, or 0 if nothing has been recorded
+     */
+    public long getPercentile(final double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100.");
+        }
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += counts.get(b);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(highestInBucket(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Removes every recorded latency. Latencies that are recorded at the same
+     * time may be partly removed.
+     */
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Gets the name of the histogram.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Summarizes the histogram in microseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", name,
+                getCount(), getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(99) / 1e3,
+                getPercentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
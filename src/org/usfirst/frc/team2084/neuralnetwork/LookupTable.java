@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A table of the values of a function at evenly spaced points, which
+ * approximates the function between them using linear interpolation. Outside
+ * of the range of the table, the value at the nearest end is returned, so this
+ * is meant for functions that level off, like the sigmoid.
+ *
+ * @author Ben Wolsieffer
+ */
+final class LookupTable {
+
+    private final double min;
+    private final double max;
+    /**
+     * The number of table entries per unit of x.
+     */
+    private final double scale;
+    private final double[] values;
+
+    /**
+     * Creates a lookup table for a function.
+     *
+     * @param function the function to tabulate
+     * @param min the lowest x value in the table
+     * @param max the highest x value in the table
+     * @param intervals the number of intervals to divide the range into
+     */
+    LookupTable(final DoubleUnaryOperator function, final double min, final double max, final int intervals) {
+        this.min = min;
+        this.max = max;
+        scale = intervals / (max - min);
+        // One extra entry so interpolation in the last interval never reads
+        // past the end
+        values = new double[intervals + 2];
+        for (int i = 0; i <= intervals; i++) {
+            values[i] = function.applyAsDouble(min + i / scale);
+        }
+        values[intervals + 1] = values[intervals];
+    }
+
+    /**
+     * Gets the approximate value of the function at x.
+     *
+     * @param x the x value
+     * @return the interpolated value
+     */
+    double get(final double x) {
+        if (x <= min) {
+            return values[0];
+        }
+        if (x >= max) {
+            return values[values.length - 1];
+        }
+        final double position = (x - min) * scale;
+        final int index = (int) position;
+        final double fraction = position - index;
+        final double low = values[index];
+        return low + (values[index + 1] - low) * fraction;
+    }
+}
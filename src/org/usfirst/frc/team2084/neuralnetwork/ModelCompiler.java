@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the current weights of a small {@link Network} into a class that is
+ * specialized for its exact topology. The generated code has every loop
+ * unrolled, keeps the outputs of each layer in local variables, has the
+ * weights inlined as constants and calls the transfer function through its
+ * concrete class, so the JIT can inline it. For the small networks used for
+ * control, this has lower latency than {@link InferenceModel}, which has to
+ * loop over arrays of weights.
+ *
+ * The class is generated as Java source and compiled in memory with the
+ * system Java compiler, so this only works when running on a JDK. Compiling
+ * takes a moment, so it is meant to be done once, after training. If the
+ * compiler is not available, or the generated method is too large for the JIT
+ * to compile, an {@link InferenceModel} is returned instead. Either way, the
+ * results are the same as those of an {@link InferenceModel} with the scalar
+ * kernels, because the sums are calculated in the same order.
+ *
+ * @author Ben Wolsieffer
+ */
+public final class ModelCompiler {
+
+    /**
+     * The maximum number of weights that are compiled. Each weight takes
+     * about 7 bytes of bytecode, so larger networks would almost always go
+     * over {@link #MAX_METHOD_SIZE}, and are not worth compiling.
+     */
+    public static final int MAX_WEIGHTS = 1000;
+    /**
+     * The largest method, in bytes of bytecode, that HotSpot compiles by
+     * default (see {@code -XX:-DontCompileHugeMethods}). A larger predict
+     * method would always be interpreted, which is several times slower than
+     * an {@link InferenceModel}, so it is discarded. Networks with many inputs
+     * can reach this with fewer than {@link #MAX_WEIGHTS} weights, because
+     * each input is copied into a local variable too.
+     */
+    public static final int MAX_METHOD_SIZE = 8000;
+
+    private static final String PACKAGE = "org.usfirst.frc.team2084.neuralnetwork.generated";
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private ModelCompiler() {
+    }
+
+    /**
+     * Checks whether the Java compiler is available, which is needed to
+     * generate specialized classes.
+     *
+     * @return true if networks can be compiled
+     */
+    public static boolean isAvailable() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * Compiles the current weights of a network into a specialized predictor.
+     * Later training of the network does not affect the predictor.
+     *
+     * @param network the network to compile
+     * @return a compiled predictor, or an {@link InferenceModel} if the
+     *         network cannot be compiled
+     */
+    public static Predictor compile(final Network network) {
+        final int[] topology = network.getTopology();
+        long weights = 0;
+        for (int l = 0; l < topology.length - 1; l++) {
+            weights += (long) (topology[l] + 1) * topology[l + 1];
+        }
+        if (weights <= MAX_WEIGHTS) {
+            final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler != null) {
+                final String name = "CompiledModel" + count.incrementAndGet();
+                final Predictor predictor = load(compiler, name, generate(network, name),
+                        network.getTransferFunction());
+                if (predictor != null) {
+                    return predictor;
+                }
+            }
+        }
+        return new InferenceModel(network);
+    }
+
+    /**
+     * Generates the source code of a predictor for a network.
+     *
+     * @param network the network
+     * @param name the simple name of the class
+     * @return the source code
+     */
+    static String generate(final Network network, final String name) {
+        final int[] topology = network.getTopology();
+        final int outputLayer = topology.length - 1;
+        final String transferFunction = typeName(network.getTransferFunction().getClass());
+
+        final StringBuilder code = new StringBuilder();
+        code.append("package ").append(PACKAGE).append(";\n\n");
+        code.append("public final class ").append(name).append(" implements ")
+                .append(Predictor.class.getCanonicalName()).append(" {\n\n");
+        code.append("    private final ").append(transferFunction).append(" f;\n\n");
+        code.append("    public ").append(name).append("(final ")
+                .append(TransferFunction.class.getCanonicalName()).append(" f) {\n");
+        code.append("        this.f = (").append(transferFunction).append(") f;\n");
+        code.append("    }\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public void predict(final double[] in, final double[] out) {\n");
+        code.append("        if (in.length != ").append(topology[0]).append(") {\n");
+        code.append("            throw new IllegalArgumentException(\"inputs needs to be the same size as the input layer - bias\");\n");
+        code.append("        }\n");
+        code.append("        if (out.length != ").append(topology[outputLayer]).append(") {\n");
+        code.append("            throw new IllegalArgumentException(\"outputs needs to be the same size as the output layer - bias\");\n");
+        code.append("        }\n");
+        for (int n = 0; n < topology[0]; n++) {
+            code.append("        final double x0_").append(n).append(" = in[").append(n).append("];\n");
+        }
+        for (int l = 1; l <= outputLayer; l++) {
+            final int stride = topology[l - 1] + 1;
+            for (int j = 0; j < topology[l]; j++) {
+                code.append(l == outputLayer ? "        out[" + j + "] = f.calculate("
+                        : "        final double x" + l + "_" + j + " = f.calculate(");
+                // Summed in the same order as the kernels, with the bias last
+                for (int i = 0; i < stride; i++) {
+                    final String weight = literal(network.getWeight(l - 1, j * stride + i));
+                    if (i > 0) {
+                        code.append(" + ");
+                    }
+                    if (i < stride - 1) {
+                        code.append(weight).append(" * x").append(l - 1).append('_').append(i);
+                    } else {
+                        code.append(weight);
+                    }
+                }
+                code.append(");\n");
+            }
+        }
+        code.append("    }\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public int[] getTopology() {\n");
+        code.append("        return new int[] { ");
+        for (int l = 0; l < topology.length; l++) {
+            code.append(l > 0 ? ", " : "").append(topology[l]);
+        }
+        code.append(" };\n");
+        code.append("    }\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * Gets the name of the most specific public type of a transfer function,
+     * so its calls can be resolved statically.
+     *
+     * @param type the class of the transfer function
+     * @return the name of the class, or of the interface if the class is not
+     *         accessible
+     */
+    private static String typeName(final Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return TransferFunction.class.getCanonicalName();
+            }
+        }
+        final String name = type.getCanonicalName();
+        return name != null ? name : TransferFunction.class.getCanonicalName();
+    }
+
+    /**
+     * Formats a weight as a Java literal that has exactly the same value.
+     *
+     * @param value the weight
+     * @return the literal
+     */
+    private static String literal(final double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        final String literal = Double.toString(value);
+        return value < 0 ? "(" + literal + ")" : literal;
+    }
+
+    /**
+     * Compiles and instantiates a generated predictor.
+     *
+     * @param compiler the compiler
+     * @param name the simple name of the class
+     * @param source the source code
+     * @param transferFunction the transfer function to pass to the
+     *        constructor
+     * @return the predictor, or null if it could not be compiled or loaded,
+     *         or if its predict method is larger than
+     *         {@link #MAX_METHOD_SIZE}
+     */
+    private static Predictor load(final JavaCompiler compiler, final String name, final String source,
+            final TransferFunction transferFunction) {
+        final String className = PACKAGE + "." + name;
+        final Map<String, byte[]> classes = compileClasses(compiler, className, source);
+        if (classes == null || methodSize(classes.get(className), "predict") > MAX_METHOD_SIZE) {
+            return null;
+        }
+        try {
+            final ClassLoader loader = new GeneratedClassLoader(Predictor.class.getClassLoader(), classes);
+            return (Predictor) loader.loadClass(className).getConstructor(TransferFunction.class)
+                    .newInstance(transferFunction);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compiles generated source code in memory.
+     *
+     * @param compiler the compiler
+     * @param className the fully qualified name of the class
+     * @param source the source code
+     * @return the compiled classes, by name, or null if it could not be
+     *         compiled
+     */
+    private static Map<String, byte[]> compileClasses(final JavaCompiler compiler, final String className,
+            final String source) {
+        final MemoryFileManager files = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+        final List<String> options = Arrays.asList("-classpath", classPath(), "-g:none", "-nowarn");
+        final boolean compiled = compiler.getTask(null, files, new DiagnosticCollector<JavaFileObject>(), options,
+                null, Collections.singletonList(new MemorySource(className, source))).call();
+        return compiled ? files.classes : null;
+    }
+
+    /**
+     * Generates and compiles the predictor for a network, regardless of its
+     * size, and gets the size of its predict method. This is used to test
+     * that the networks that are compiled stay below
+     * {@link #MAX_METHOD_SIZE}.
+     *
+     * @param network the network
+     * @return the size of the bytecode of the predict method, or -1 if it
+     *         could not be compiled
+     */
+    static int predictSize(final Network network) {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return -1;
+        }
+        final String name = "CompiledModel" + count.incrementAndGet();
+        final String className = PACKAGE + "." + name;
+        final Map<String, byte[]> classes = compileClasses(compiler, className, generate(network, name));
+        return classes != null ? methodSize(classes.get(className), "predict") : -1;
+    }
+
+    /**
+     * Reads the size of the bytecode of a method from a class file.
+     *
+     * @param classFile the contents of the class file
+     * @param method the name of the method
+     * @return the length of the code of the first method with that name, or
+     *         -1 if it was not found
+     */
+    static int methodSize(final byte[] classFile, final String method) {
+        if (classFile == null) {
+            return -1;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+            // Magic number and version
+            in.skipBytes(8);
+            final int constants = in.readUnsignedShort();
+            final String[] strings = new String[constants];
+            for (int c = 1; c < constants; c++) {
+                final int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1: // Utf8
+                    strings[c] = in.readUTF();
+                break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    // These take up two entries
+                    c++;
+                break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                break;
+                default:
+                    return -1;
+                }
+            }
+            // Access flags, this class and super class
+            in.skipBytes(6);
+            in.skipBytes(2 * in.readUnsignedShort());
+            // Fields
+            final int fields = in.readUnsignedShort();
+            for (int f = 0; f < fields; f++) {
+                in.skipBytes(6);
+                skipAttributes(in);
+            }
+            final int methods = in.readUnsignedShort();
+            for (int m = 0; m < methods; m++) {
+                in.skipBytes(2);
+                final String name = strings[in.readUnsignedShort()];
+                in.skipBytes(2);
+                final int attributes = in.readUnsignedShort();
+                for (int a = 0; a < attributes; a++) {
+                    final String attribute = strings[in.readUnsignedShort()];
+                    final int length = in.readInt();
+                    if (method.equals(name) && "Code".equals(attribute)) {
+                        // Max stack and max locals come before the length
+                        in.skipBytes(4);
+                        return in.readInt();
+                    }
+                    in.skipBytes(length);
+                }
+            }
+            return -1;
+        } catch (final IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Skips the attributes of a field or method in a class file.
+     *
+     * @param in the class file, positioned at the attribute count
+     * @throws IOException if the class file ends too soon
+     */
+    private static void skipAttributes(final DataInputStream in) throws IOException {
+        final int attributes = in.readUnsignedShort();
+        for (int a = 0; a < attributes; a++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    /**
+     * Gets the class path to compile against, which includes the location
+     * this library was loaded from.
+     *
+     * @return the class path
+     */
+    private static String classPath() {
+        String classPath = System.getProperty("java.class.path", "");
+        try {
+            final CodeSource source = Predictor.class.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                classPath = new File(source.getLocation().toURI()).getPath() + File.pathSeparator + classPath;
+            }
+        } catch (final Exception e) {
+            // Fall back to the class path of the JVM
+        }
+        return classPath;
+    }
+
+    /**
+     * Source code that is held in memory.
+     */
+    private static class MemorySource extends SimpleJavaFileObject {
+
+        private final String source;
+
+        MemorySource(final String className, final String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * A file manager that keeps the compiled classes in memory.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+        final Map<String, byte[]> classes = new HashMap<>();
+
+        MemoryFileManager(final JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final Location location, final String className,
+                final Kind kind, final FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension),
+                    kind) {
+
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Loads the classes of one compiled predictor, so they can be unloaded
+     * when it is no longer used.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes;
+
+        GeneratedClassLoader(final ClassLoader parent, final Map<String, byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -7,6 +7,9 @@
 package org.usfirst.frc.team2084.neuralnetwork;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A feed-forward neural network that uses back-propagation learning.
@@ -20,9 +23,95 @@ public class Network {
     private final double eta;
     private final double momentum;
     private final TransferFunction transferFunction;
+    private final Precision precision;
     private final Neuron[][] layers;
     private final double[] results;
 
+    /**
+     * The connection weights between each pair of adjacent layers. See
+     * {@link Kernels} for the layout of each matrix. This is null if the
+     * precision of the network is {@link Precision#FLOAT}.
+     */
+    final double[][] weights;
+    /**
+     * The most recent change of each weight, which is the state of the
+     * {@link Optimizer.Momentum} optimizer. Same layout as {@link #weights},
+     * and also null if the precision is {@link Precision#FLOAT}.
+     */
+    final double[][] deltaWeights;
+    /**
+     * The connection weights of a network with {@link Precision#FLOAT}, or
+     * null if the precision is {@link Precision#DOUBLE}.
+     */
+    final float[][] floatWeights;
+    /**
+     * The most recent change of each weight of a network with
+     * {@link Precision#FLOAT}, or null if the precision is
+     * {@link Precision#DOUBLE}.
+     */
+    final float[][] floatDeltaWeights;
+    /**
+     * The output value of each neuron, with the bias neuron (constant 1.0) at
+     * the end of each layer.
+     */
+    final double[][] outputs;
+    /**
+     * The derivative of the transfer function of each neuron, for the most
+     * recent forward pass. While {@link #derivativesPending} is set, this
+     * holds the weighted input sum of each neuron instead.
+     */
+    final double[][] derivatives;
+    /**
+     * Whether {@link #derivatives} holds the weighted input sums of the last
+     * call to {@link #feedForward(double...)}, which are only turned into
+     * derivatives when they are needed, so inference does not pay for them.
+     */
+    private boolean derivativesPending;
+    /**
+     * The gradient of each neuron, used in back-propagation.
+     */
+    final double[][] gradients;
+    /**
+     * Working memory for {@link #trainBatch(double[][], double[][])}, which is
+     * only allocated if it is used.
+     */
+    private Batch batch;
+    /**
+     * Working memory for {@link #predictBatch(double[][], double[][])}, which
+     * is only allocated if it is used.
+     */
+    private PredictionBatch prediction;
+    /**
+     * The pool used to split wide layers across threads, or null if every
+     * layer is calculated on the calling thread.
+     */
+    private ForkJoinPool layerPool;
+    /**
+     * The number of neurons a layer must have to be split across threads.
+     */
+    private int layerParallelThreshold = Integer.MAX_VALUE;
+    /**
+     * The tasks that split each pass over each wide layer, indexed by the
+     * ordinal of the pass and then the layer, which are created when the pool
+     * is set and reused for every sample. Layers that are not split have no
+     * tasks.
+     */
+    private LayerStep[][] layerSteps;
+    /**
+     * The metrics that training is recorded in, or null if they are not
+     * collected.
+     */
+    private TrainingMetrics metrics;
+    /**
+     * The optimizer that decides how the weights are updated.
+     */
+    private Optimizer optimizer;
+    /**
+     * Counts the changes of the weights, so copies of them can tell when they
+     * are out of date.
+     */
+    private final AtomicLong weightVersion = new AtomicLong();
+
     /**
      * Creates a neural network with the specified topology, learning rate
      * (eta), momentum (alpha) and transfer function.
@@ -33,35 +122,85 @@ public class Network {
      * @param transferFunction the transfer function
      */
     public Network(final int[] topology, final double eta, final double momentum, final TransferFunction transferFunction) {
+        this(topology, eta, momentum, transferFunction, Precision.DOUBLE);
+    }
+
+    /**
+     * Creates a neural network with the specified topology, learning rate
+     * (eta), momentum (alpha), transfer function and weight precision.
+     * 
+     * @param topology an array containing the size of each layer
+     * @param eta the learning rate
+     * @param momentum the learning momentum
+     * @param transferFunction the transfer function
+     * @param precision the precision to store the weights in
+     */
+    public Network(final int[] topology, final double eta, final double momentum,
+            final TransferFunction transferFunction, final Precision precision) {
         this.topology = topology;
         this.eta = eta;
         this.momentum = momentum;
         this.transferFunction = transferFunction;
+        this.precision = precision;
+        final boolean single = precision == Precision.FLOAT;
 
         // size
         final int numberOfLayers = topology.length;
         layers = new Neuron[numberOfLayers][];
+        outputs = new double[numberOfLayers][];
+        derivatives = new double[numberOfLayers][];
+        gradients = new double[numberOfLayers][];
+        // The last layer has no outgoing connections
+        weights = single ? null : new double[numberOfLayers - 1][];
+        deltaWeights = single ? null : new double[numberOfLayers - 1][];
+        floatWeights = single ? new float[numberOfLayers - 1][] : null;
+        floatDeltaWeights = single ? new float[numberOfLayers - 1][] : null;
 
         // create a new layer on each iteration
         for (int layerNumber = 0; layerNumber < numberOfLayers; layerNumber++) {
             final int layerSize = topology[layerNumber];
             // Add 1 for bias
             final Neuron[] layer = layers[layerNumber] = new Neuron[layerSize + 1];
+            outputs[layerNumber] = new double[layerSize + 1];
+            // The bias neuron gets a derivative and gradient too, even though
+            // they are never used, so that its Neuron view behaves like the
+            // others
+            derivatives[layerNumber] = new double[layerSize + 1];
+            gradients[layerNumber] = new double[layerSize + 1];
 
             // number of outputs to a neuron
             final int numberOutputs = (layerNumber == numberOfLayers - 1) ? 0 : topology[layerNumber + 1];
 
+            if (numberOutputs > 0) {
+                final int weightCount = numberOutputs * (layerSize + 1);
+                if (single) {
+                    final float[] layerWeights = floatWeights[layerNumber] = new float[weightCount];
+                    for (int i = 0; i < weightCount; i++) {
+                        layerWeights[i] = (float) Math.random();
+                    }
+                    floatDeltaWeights[layerNumber] = new float[weightCount];
+                } else {
+                    final double[] layerWeights = weights[layerNumber] = new double[weightCount];
+                    for (int i = 0; i < weightCount; i++) {
+                        layerWeights[i] = Math.random();
+                    }
+                    deltaWeights[layerNumber] = new double[weightCount];
+                }
+            }
+
             // fill layer with neurons and add bias neuron to the layer;
             for (int neuronNumber = 0; neuronNumber <= layerSize; neuronNumber++) {
-                layer[neuronNumber] = new Neuron(numberOutputs, neuronNumber, transferFunction);
+                layer[neuronNumber] = new Neuron(this, layerNumber, neuronNumber, numberOutputs);
             }
 
-            // Force the bias node's output to 1.0 (it was the last neuron
-            // pushed in this layer):
-            layer[layer.length - 1].setOutputValue(1.0);
+            // Force the bias node's output to 1.0 (it is the last neuron in
+            // this layer):
+            outputs[layerNumber][layerSize] = 1.0;
         }
         // Create results array that is length of output layer - bias
-        results = new double[layers[layers.length - 1].length - 1];
+        results = new double[topology[numberOfLayers - 1]];
+
+        setOptimizer(new Optimizer.Momentum());
     }
 
     /**
@@ -79,28 +218,135 @@ public class Network {
      * @param inputValues input values to the network
      */
     public void feedForward(final double... inputValues) {
-        final Neuron[] inputLayer = layers[0];
-
-        if (inputValues.length != inputLayer.length - 1) {
+        if (inputValues.length != topology[0]) {
             throw new IllegalArgumentException("inputValues needs to be the same size as the input layer - bias");
         }
 
-        for (int i = 0; i < inputValues.length; i++) {
-            inputLayer[i].setOutputValue(inputValues[i]);
-        }
+        System.arraycopy(inputValues, 0, outputs[0], 0, inputValues.length);
 
         // forward propagation
-        // loop each layer and each neuron inside the layer
-        Neuron[] prevLayer = inputLayer;
+        // loop each layer and calculate all of its outputs from the previous
+        // layer's outputs
+        derivativesPending = true;
+        final TrainingMetrics metrics = this.metrics;
         for (int layerNumber = 1; layerNumber < layers.length; layerNumber++) {
-            Neuron[] layer = layers[layerNumber];
-            for (int i = 0; i < layer.length - 1; i++) {
-                layer[i].feedForward(prevLayer);
+            final long start = metrics != null ? System.nanoTime() : 0;
+            if (isParallel(layerNumber)) {
+                invokeLayer(Pass.FORWARD, layerNumber);
+            } else {
+                sumLayer(layerNumber, 0, topology[layerNumber]);
+            }
+            if (metrics != null) {
+                metrics.recordForward(layerNumber, System.nanoTime() - start);
             }
-            prevLayer = layer;
         }
     }
 
+    /**
+     * Calculates the outputs of the network for the specified inputs and copies
+     * them into an existing array. This is the same as calling
+     * {@link #feedForward(double...)} and {@link #getResults()}, but it does
+     * not need a new input array for each call and does not share the results
+     * array, so it never allocates anything.
+     * 
+     * @param inputValues input values to the network
+     * @param outputValues the array to store the output values in, the same
+     *        size as the output layer - bias
+     */
+    public void predict(final double[] inputValues, final double[] outputValues) {
+        if (outputValues.length != results.length) {
+            throw new IllegalArgumentException("outputValues needs to be the same size as the output layer - bias");
+        }
+        feedForward(inputValues);
+        System.arraycopy(outputs[layers.length - 1], 0, outputValues, 0, outputValues.length);
+    }
+
+    /**
+     * Calculates the outputs of the network for a set of samples. The samples
+     * are fed forward a tile at a time, so each weight is loaded from memory
+     * once per tile instead of once per sample, which is much faster than
+     * calling {@link #predict(double[], double[])} for each sample. The
+     * outputs and derivatives of the network itself are not changed.
+     * 
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param outputValues the arrays to store the output values of each
+     *        sample in, each the same size as the output layer - bias
+     */
+    public void predictBatch(final double[][] inputs, final double[][] outputValues) {
+        if (inputs.length != outputValues.length) {
+            throw new IllegalArgumentException("inputs and outputValues lengths do not match.");
+        }
+        if (prediction == null) {
+            prediction = new PredictionBatch(topology);
+        }
+        prediction.predict(this, inputs, outputValues, null, 0, inputs.length);
+    }
+
+    /**
+     * Calculates the outputs of the network for a set of samples, like
+     * {@link #predictBatch(double[][], double[][])}, with the samples split
+     * across the threads of a pool. The network must not be trained while
+     * this is running.
+     * 
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param outputValues the arrays to store the output values of each
+     *        sample in, each the same size as the output layer - bias
+     * @param pool the pool to run on
+     */
+    public void predictBatch(final double[][] inputs, final double[][] outputValues, final ForkJoinPool pool) {
+        if (inputs.length != outputValues.length) {
+            throw new IllegalArgumentException("inputs and outputValues lengths do not match.");
+        }
+        pool.invoke(new Evaluation(pool.getParallelism(), inputs, outputValues, null));
+    }
+
+    /**
+     * Calculates the average error of the network over a set of samples,
+     * using the common {@link ForkJoinPool}.
+     * 
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     * @return the average error of the samples
+     * 
+     * @see #evaluate(double[][], double[][], ForkJoinPool)
+     */
+    public double evaluate(final double[][] inputs, final double[][] targetOutputs) {
+        return evaluate(inputs, targetOutputs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Calculates the average error of the network over a set of samples,
+     * without training it. The error of each sample is half of the sum of the
+     * squared differences between its outputs and target outputs, the same as
+     * {@link #getRecentAverageError()} after
+     * {@link #trainBatch(double[][], double[][])}. The samples are split
+     * across the threads of a pool and fed forward a tile at a time, like
+     * {@link #predictBatch(double[][], double[][])}. The network must not be
+     * trained while this is running.
+     * 
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     * @param pool the pool to run on
+     * @return the average error of the samples, or 0 if there are none
+     */
+    public double evaluate(final double[][] inputs, final double[][] targetOutputs, final ForkJoinPool pool) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        if (inputs.length == 0) {
+            return 0.0;
+        }
+        final Evaluation evaluation = new Evaluation(pool.getParallelism(), inputs, null, targetOutputs);
+        pool.invoke(evaluation);
+        return evaluation.error / inputs.length;
+    }
+
     /**
      * Performs back propagation learning on the network. This attempts to
      * adjust the weights of the neurons to minimize the error between the
@@ -110,22 +356,14 @@ public class Network {
      */
     public void backPropagation(final double... targetValues) {
 
-        final Neuron[] outputLayer = layers[layers.length - 1];
+        final int outputLayer = layers.length - 1;
+        computeDerivatives();
 
         // Calculate overall net error (RMS-root mean square error - of output
         // neuron errors)
         // overall net error
-        double error = 0.0;
-
-        for (int n = 0; n < outputLayer.length - 1; n++) {
-            Neuron output = outputLayer[n];
-            final double delta = targetValues[n] - output.getOutputValue();
-            error += delta * delta;
-
-            // Calculate output layer gradients
-            outputLayer[n].calculateOutputGradients(targetValues[n]);
-        }
-        error *= 0.5;
+        final double error = outputGradients(outputs[outputLayer], derivatives[outputLayer], gradients[outputLayer],
+                targetValues);
         // error = Math.sqrt(error / outputLayer.length);
 
         // error/=(* numPatterns); //get average error squared
@@ -133,36 +371,385 @@ public class Network {
         // Implement a recent average measurement
         recentAverageError = error;
 
-        // Calculate hidden layer gradients
-        for (int layerNumber = layers.length - 2; layerNumber > 0; layerNumber--) {
-            final Neuron[] hiddenLayer = layers[layerNumber];
-            final Neuron[] nextLayer = layers[layerNumber + 1];
+        final TrainingMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordLoss(error, 1);
+        }
 
-            Arrays.stream(hiddenLayer).forEach(n -> n.calculateHiddenGradients(nextLayer));
+        // Calculate hidden layer gradients
+        for (int layerNumber = outputLayer - 1; layerNumber > 0; layerNumber--) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            if (isParallel(layerNumber)) {
+                invokeLayer(Pass.BACKWARD, layerNumber);
+            } else {
+                backwardLayer(derivatives, gradients, layerNumber, 0, topology[layerNumber]);
+            }
+            if (metrics != null) {
+                metrics.recordBackward(layerNumber, System.nanoTime() - start);
+            }
         }
 
         // For all layers from outputs to first hidden layer,
         // update connection weights
-        for (int layerNumber = layers.length - 1; layerNumber > 0; layerNumber--) {
-            final Neuron[] layer = layers[layerNumber];
-            final Neuron[] prevLayer = layers[layerNumber - 1];
+        optimizer.startStep();
+        for (int layerNumber = outputLayer; layerNumber > 0; layerNumber--) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            if (isParallel(layerNumber)) {
+                invokeLayer(Pass.UPDATE, layerNumber);
+            } else {
+                updateLayer(outputs, gradients, layerNumber, 0, topology[layerNumber]);
+            }
+            if (metrics != null) {
+                metrics.recordUpdate(layerNumber, System.nanoTime() - start);
+            }
+        }
+        weightsChanged();
+    }
 
-            for (int n = 0; n < layer.length - 1; n++) {
-                layer[n].updateInputWeights(prevLayer, eta, momentum);
+    /**
+     * Calculates the gradients of the output layer and the error of a sample.
+     * 
+     * @param outputValues the outputs of the output layer
+     * @param outputDerivatives the transfer function derivatives of the output
+     *        layer
+     * @param outputGradients the array to store the gradients in
+     * @param targetValues the target values for the outputs
+     * @return half of the sum of the squared errors of the outputs
+     */
+    double outputGradients(final double[] outputValues, final double[] outputDerivatives,
+            final double[] outputGradients, final double[] targetValues) {
+        final int outputSize = topology[layers.length - 1];
+        double error = 0.0;
+
+        for (int n = 0; n < outputSize; n++) {
+            final double delta = targetValues[n] - outputValues[n];
+            error += delta * delta;
+
+            // Calculate output layer gradients
+            outputGradients[n] = delta * outputDerivatives[n];
+        }
+        return error * 0.5;
+    }
+
+    /**
+     * Calculates the outputs of a range of neurons in a layer from the outputs
+     * of the previous layer. The activation arrays are passed in so that
+     * several threads can run samples through the same weights at once, each
+     * with its own activations.
+     * 
+     * @param outputs the outputs of each layer, laid out like
+     *        {@link #outputs}
+     * @param derivatives the transfer function derivatives of each layer,
+     *        laid out like {@link #derivatives}
+     * @param layer the index of the layer
+     * @param from the index of the first neuron (inclusive)
+     * @param to the index of the last neuron (exclusive)
+     */
+    void forwardLayer(final double[][] outputs, final double[][] derivatives, final int layer, final int from,
+            final int to) {
+        if (floatWeights != null) {
+            Kernels.forward(floatWeights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1,
+                    derivatives[layer], outputs[layer], from, to, transferFunction);
+        } else {
+            Kernels.forward(weights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1, derivatives[layer],
+                    outputs[layer], from, to, transferFunction);
+        }
+    }
+
+    /**
+     * Calculates the outputs of a range of neurons in a layer of this network,
+     * storing the weighted input sums in {@link #derivatives} to be turned
+     * into derivatives by {@link #computeDerivatives()}.
+     * 
+     * @param layer the index of the layer
+     * @param from the index of the first neuron (inclusive)
+     * @param to the index of the last neuron (exclusive)
+     */
+    private void sumLayer(final int layer, final int from, final int to) {
+        if (floatWeights != null) {
+            Kernels.forwardSums(floatWeights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1,
+                    derivatives[layer], outputs[layer], from, to, transferFunction);
+        } else {
+            Kernels.forwardSums(weights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1, derivatives[layer],
+                    outputs[layer], from, to, transferFunction);
+        }
+    }
+
+    /**
+     * Turns the weighted input sums stored by the last call to
+     * {@link #feedForward(double...)} into transfer function derivatives, if
+     * that has not been done yet. This must be called before the derivatives
+     * are used, and before any outputs are replaced, since the derivatives
+     * are calculated from the outputs of the forward pass.
+     */
+    void computeDerivatives() {
+        if (derivativesPending) {
+            for (int l = 1; l < layers.length; l++) {
+                Kernels.derivatives(derivatives[l], outputs[l], topology[l], transferFunction);
             }
+            derivativesPending = false;
         }
     }
 
+    /**
+     * Calculates the gradients of a range of neurons in a hidden layer from
+     * the gradients of the next layer.
+     * 
+     * @param derivatives the transfer function derivatives of each layer
+     * @param gradients the gradients of each layer, laid out like
+     *        {@link #gradients}
+     * @param layer the index of the layer
+     * @param from the index of the first neuron (inclusive)
+     * @param to the index of the last neuron (exclusive)
+     */
+    void backwardLayer(final double[][] derivatives, final double[][] gradients, final int layer, final int from,
+            final int to) {
+        if (floatWeights != null) {
+            Kernels.backward(floatWeights[layer], gradients[layer + 1], topology[layer + 1], topology[layer] + 1,
+                    derivatives[layer], gradients[layer], from, to);
+        } else {
+            Kernels.backward(weights[layer], gradients[layer + 1], topology[layer + 1], topology[layer] + 1,
+                    derivatives[layer], gradients[layer], from, to);
+        }
+    }
+
+    /**
+     * Updates the weights coming into a range of neurons in a layer.
+     * 
+     * @param outputs the outputs of each layer
+     * @param gradients the gradients of each layer
+     * @param layer the index of the layer
+     * @param from the index of the first neuron (inclusive)
+     * @param to the index of the last neuron (exclusive)
+     */
+    void updateLayer(final double[][] outputs, final double[][] gradients, final int layer, final int from,
+            final int to) {
+        final Optimizer optimizer = this.optimizer;
+        if (optimizer instanceof Optimizer.Momentum) {
+            // Momentum is fused into a vectorized kernel
+            if (floatWeights != null) {
+                Kernels.update(floatWeights[layer - 1], floatDeltaWeights[layer - 1], outputs[layer - 1],
+                        topology[layer - 1] + 1, gradients[layer], from, to, eta, momentum);
+            } else {
+                Kernels.update(weights[layer - 1], deltaWeights[layer - 1], outputs[layer - 1],
+                        topology[layer - 1] + 1, gradients[layer], from, to, eta, momentum);
+            }
+        } else if (floatWeights != null) {
+            Kernels.update(optimizer, layer - 1, floatWeights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1,
+                    gradients[layer], from, to);
+        } else {
+            Kernels.update(optimizer, layer - 1, weights[layer - 1], outputs[layer - 1], topology[layer - 1] + 1,
+                    gradients[layer], from, to);
+        }
+    }
+
+    /**
+     * Checks whether a layer is wide enough to be split across threads.
+     * 
+     * @param layer the index of the layer
+     * @return true if the layer should be calculated in parallel
+     */
+    private boolean isParallel(final int layer) {
+        return layerPool != null && topology[layer] >= layerParallelThreshold;
+    }
+
+    /**
+     * Runs one pass over a wide layer on the layer pool, reusing the tasks
+     * from the previous sample.
+     *
+     * @param pass the pass to run
+     * @param layer the index of the layer
+     */
+    private void invokeLayer(final Pass pass, final int layer) {
+        final LayerStep step = layerSteps[pass.ordinal()][layer];
+        step.reinitialize();
+        layerPool.invoke(step);
+    }
+
+    /**
+     * Sets the pool used to split the neurons of wide layers across threads
+     * in {@link #feedForward(double...)} and
+     * {@link #backPropagation(double...)}. Each layer with at least
+     * {@code threshold} neurons is divided into one contiguous range of
+     * neurons per thread of the pool. Narrower layers are still calculated on
+     * the calling thread, because the cost of handing them to the pool is
+     * larger than the time saved. The results are exactly the same as when
+     * calculating each layer on one thread. The tasks for each layer are
+     * created here and reused, so splitting a layer does not allocate any
+     * tasks per sample.
+     * 
+     * This is meant for networks that are too wide for one core to train or
+     * evaluate one sample at a time quickly enough. It does not affect
+     * {@link #trainBatch(double[][], double[][])}, which should be
+     * parallelized across samples with a {@link ParallelTrainer} instead.
+     * 
+     * @param pool the pool to run on, or null to calculate every layer on the
+     *        calling thread
+     * @param threshold the minimum number of neurons in a layer to split it
+     */
+    public void setLayerParallelism(final ForkJoinPool pool, final int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive.");
+        }
+        layerPool = pool;
+        layerParallelThreshold = threshold;
+
+        layerSteps = null;
+        if (pool != null) {
+            final Pass[] passes = Pass.values();
+            layerSteps = new LayerStep[passes.length][topology.length];
+            for (final Pass pass : passes) {
+                for (int l = 1; l < topology.length; l++) {
+                    if (isParallel(l)) {
+                        layerSteps[pass.ordinal()][l] = new LayerStep(pass, l, pool.getParallelism());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the pool used to split wide layers across threads.
+     * 
+     * @return the pool, or null if layers are not split
+     * 
+     * @see #setLayerParallelism(ForkJoinPool, int)
+     */
+    public ForkJoinPool getLayerPool() {
+        return layerPool;
+    }
+
+    /**
+     * Gets the number of neurons a layer must have to be split across
+     * threads.
+     * 
+     * @return the threshold
+     * 
+     * @see #setLayerParallelism(ForkJoinPool, int)
+     */
+    public int getLayerParallelThreshold() {
+        return layerParallelThreshold;
+    }
+
+    /**
+     * Sets the metrics that training of this network is recorded in. When
+     * there are no metrics, which is the default, nothing is measured.
+     * 
+     * @param metrics the metrics to record in, or null to stop recording
+     */
+    public void setMetrics(final TrainingMetrics metrics) {
+        if (metrics != null && metrics.getLayerCount() != layers.length) {
+            throw new IllegalArgumentException("The metrics are for a different number of layers.");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the metrics that training of this network is recorded in.
+     * 
+     * @return the metrics, or null if they are not being recorded
+     */
+    public TrainingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Trains the network on a batch of samples, applying a single weight
+     * update for the whole batch. The weight gradients of every sample are
+     * calculated using the same weights and averaged, so a batch of one sample
+     * is the same as calling {@link #feedForward(double...)} followed by
+     * {@link #backPropagation(double...)}. The samples are processed in small
+     * tiles as matrix-matrix operations, which is much faster than training
+     * one sample at a time.
+     * 
+     * This does not change the outputs of the neurons, so
+     * {@link #getResults()} still reflects the last call to
+     * {@link #feedForward(double...)}. Afterwards,
+     * {@link #getRecentAverageError()} returns the average error of the
+     * samples in the batch.
+     * 
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     */
+    public void trainBatch(final double[][] inputs, final double[][] targetOutputs) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        trainBatch(inputs, targetOutputs, 0, inputs.length);
+    }
+
+    /**
+     * Trains the network on a range of samples as a single batch. This is the
+     * same as {@link #trainBatch(double[][], double[][])}, but it allows a
+     * batch to be taken from a larger set of samples without copying it.
+     * 
+     * @param inputs the input values of each sample
+     * @param targetOutputs the target output values of each sample
+     * @param from the index of the first sample in the batch (inclusive)
+     * @param to the index of the last sample in the batch (exclusive)
+     */
+    public void trainBatch(final double[][] inputs, final double[][] targetOutputs, final int from, final int to) {
+        final int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+
+        Batch.checkSamples(topology, inputs, targetOutputs, from, to);
+
+        if (batch == null) {
+            batch = new Batch(topology);
+        }
+
+        final double error = batch.accumulate(this, inputs, targetOutputs, from, to);
+        applyGradients(batch.weightGradients, count);
+        recentAverageError = error / count;
+        if (metrics != null) {
+            metrics.recordLoss(error, count);
+        }
+    }
+
+    /**
+     * Updates the weights using the average of accumulated weight gradients,
+     * and clears the accumulator.
+     * 
+     * @param weightGradients the accumulated weight gradients
+     * @param count the number of samples the gradients were accumulated over
+     */
+    void applyGradients(final double[][] weightGradients, final int count) {
+        final TrainingMetrics metrics = this.metrics;
+        final Optimizer optimizer = this.optimizer;
+        final boolean momentumOnly = optimizer instanceof Optimizer.Momentum;
+        final double rate = eta / count;
+        optimizer.startStep();
+        for (int l = 0; l < weightGradients.length; l++) {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            if (momentumOnly) {
+                if (floatWeights != null) {
+                    Kernels.applyGradients(floatWeights[l], floatDeltaWeights[l], weightGradients[l], rate, momentum);
+                } else {
+                    Kernels.applyGradients(weights[l], deltaWeights[l], weightGradients[l], rate, momentum);
+                }
+            } else if (floatWeights != null) {
+                Kernels.applyGradients(optimizer, l, floatWeights[l], weightGradients[l], 1.0 / count);
+            } else {
+                Kernels.applyGradients(optimizer, l, weights[l], weightGradients[l], 1.0 / count);
+            }
+            if (metrics != null) {
+                metrics.recordUpdate(l + 1, System.nanoTime() - start);
+            }
+        }
+        weightsChanged();
+    }
+
     /**
      * Gets the results of the network.
      * 
      * @return an array containing the values of each of the output neurons
      */
     public double[] getResults() {
-        final Neuron[] outputLayer = layers[layers.length - 1];
-        for (int n = 0; n < outputLayer.length - 1; n++) {
-            results[n] = outputLayer[n].getOutputValue();
-        }
+        System.arraycopy(outputs[layers.length - 1], 0, results, 0, results.length);
         return results;
     }
 
@@ -193,6 +780,40 @@ public class Network {
         return transferFunction;
     }
 
+    /**
+     * Sets the optimizer that decides how the weights are updated, which is
+     * {@link Optimizer.Momentum} by default. This allocates the state of the
+     * optimizer, so it starts from scratch, and the optimizer cannot be used
+     * by any other network.
+     * 
+     * @param optimizer the optimizer
+     */
+    public void setOptimizer(final Optimizer optimizer) {
+        if (optimizer == null) {
+            throw new IllegalArgumentException("optimizer cannot be null.");
+        }
+        optimizer.attach(this);
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * Gets the optimizer that decides how the weights are updated.
+     * 
+     * @return the optimizer
+     */
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * Gets the precision that the weights of the network are stored in.
+     * 
+     * @return the precision of the weights
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
     /**
      * Gets the topology of the network in the form of an int[], with each
      * element containing the size of a layer.
@@ -215,9 +836,8 @@ public class Network {
     /**
      * Gets the outputs of specified layer in the form of an array of doubles.
      * This is fairly inefficient because it creates a new {@code double[]} each
-     * time it is called. It is recommended to get the neuron object itself
-     * (through {@link #getLayer(int)} and call {@link Neuron#getOutputValue()}
-     * on it.
+     * time it is called. It is recommended to use
+     * {@link #getLayerOutputs(int, double[])} with a reused array instead.
      * 
      * The returned array does not include the output of the bias node, which is
      * generally useless. If it is absolutely necessary to know the output of
@@ -227,24 +847,213 @@ public class Network {
      * @return the array of layer outputs
      */
     public double[] getLayerOutputs(final int num) {
-        final Neuron[] layer = layers[num];
-        final double[] values = new double[layer.length - 1];
+        final double[] values = new double[topology[num]];
+        getLayerOutputs(num, values);
+        return values;
+    }
 
-        for (int i = 0; i < layer.length - 1; i++) {
-            values[i] = layer[i].getOutputValue();
+    /**
+     * Copies the outputs of the specified layer into an existing array. Like
+     * {@link #getLayerOutputs(int)}, this does not include the bias node, but
+     * it does not allocate anything.
+     * 
+     * @param num the layer index
+     * @param values the array to store the outputs in, the same size as the
+     *        layer - bias
+     */
+    public void getLayerOutputs(final int num, final double[] values) {
+        if (values.length != topology[num]) {
+            throw new IllegalArgumentException("values needs to be the same size as the layer - bias");
         }
-        return values;
+        System.arraycopy(outputs[num], 0, values, 0, values.length);
     }
 
     public void setLayerOutputs(final int num, final double... outputs) {
-        final Neuron[] layer = layers[num];
-
-        if (outputs.length != layer.length - 1) {
+        if (outputs.length != topology[num]) {
             throw new IllegalArgumentException("Incorrect number of outputs.");
         }
 
-        for (int i = 0; i < outputs.length; i++) {
-            layer[i].setOutputValue(outputs[i]);
+        computeDerivatives();
+        System.arraycopy(outputs, 0, this.outputs[num], 0, outputs.length);
+    }
+
+    /**
+     * Gets the weight of the connection from a neuron to a neuron in the next
+     * layer.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param neuron the index of the source neuron in its layer (the bias
+     *        neuron is last)
+     * @param connection the index of the destination neuron in the next layer
+     * @return the weight of the connection
+     */
+    public double getWeight(final int layer, final int neuron, final int connection) {
+        return getWeight(layer, connection * (topology[layer] + 1) + neuron);
+    }
+
+    /**
+     * Sets the weight of the connection from a neuron to a neuron in the next
+     * layer.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param neuron the index of the source neuron in its layer (the bias
+     *        neuron is last)
+     * @param connection the index of the destination neuron in the next layer
+     * @param weight the new weight of the connection, which is rounded to the
+     *        nearest float if the precision is {@link Precision#FLOAT}
+     * 
+     * @see #getWeight(int, int, int)
+     */
+    public void setWeight(final int layer, final int neuron, final int connection, final double weight) {
+        setWeight(layer, connection * (topology[layer] + 1) + neuron, weight);
+    }
+
+    /**
+     * Gets a weight by its index in the weight matrix of a layer, regardless
+     * of the precision of the network.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @return the weight
+     */
+    double getWeight(final int layer, final int index) {
+        return floatWeights != null ? floatWeights[layer][index] : weights[layer][index];
+    }
+
+    /**
+     * Sets a weight by its index in the weight matrix of a layer, regardless
+     * of the precision of the network.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @param weight the new weight
+     */
+    void setWeight(final int layer, final int index, final double weight) {
+        putWeight(layer, index, weight);
+        weightsChanged();
+    }
+
+    /**
+     * Sets a weight by its index in the weight matrix of a layer without
+     * recording the change, for loops that set many weights at once. The
+     * caller must call {@link #weightsChanged()} once it is done.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @param weight the new weight
+     */
+    void putWeight(final int layer, final int index, final double weight) {
+        if (floatWeights != null) {
+            floatWeights[layer][index] = (float) weight;
+        } else {
+            weights[layer][index] = weight;
+        }
+    }
+
+    /**
+     * Gets the number of times the weights have been changed, by training or
+     * by setting them. This can be used to tell whether something calculated
+     * from the weights, like a cached output, is out of date.
+     * 
+     * @return the weight version, which starts at 0
+     */
+    public long getWeightVersion() {
+        return weightVersion.get();
+    }
+
+    /**
+     * Records that the weights have been changed. This must be called after
+     * every change of the weights that does not go through
+     * {@link #setWeight(int, int, double)}.
+     */
+    void weightsChanged() {
+        weightVersion.incrementAndGet();
+    }
+
+    /**
+     * Gets the most recent change of a weight by its index in the weight
+     * matrix of a layer, regardless of the precision of the network.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @return the delta weight
+     */
+    double getDeltaWeight(final int layer, final int index) {
+        return floatDeltaWeights != null ? floatDeltaWeights[layer][index] : deltaWeights[layer][index];
+    }
+
+    /**
+     * Sets the most recent change of a weight by its index in the weight
+     * matrix of a layer, regardless of the precision of the network.
+     * 
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @param deltaWeight the new delta weight
+     */
+    void setDeltaWeight(final int layer, final int index, final double deltaWeight) {
+        if (floatDeltaWeights != null) {
+            floatDeltaWeights[layer][index] = (float) deltaWeight;
+        } else {
+            deltaWeights[layer][index] = deltaWeight;
+        }
+    }
+
+    /**
+     * Copies the weights of another network with the same topology into this
+     * one. The networks do not need to have the same precision. The state of
+     * the optimizer of this network is not changed.
+     * 
+     * @param source the network to copy the weights from
+     */
+    public void copyWeights(final Network source) {
+        if (!Arrays.equals(topology, source.topology)) {
+            throw new IllegalArgumentException("The networks have different topologies.");
+        }
+        for (int l = 0; l < topology.length - 1; l++) {
+            if (floatWeights != null && source.floatWeights != null) {
+                System.arraycopy(source.floatWeights[l], 0, floatWeights[l], 0, floatWeights[l].length);
+            } else if (weights != null && source.weights != null) {
+                System.arraycopy(source.weights[l], 0, weights[l], 0, weights[l].length);
+            } else {
+                final int count = topology[l + 1] * (topology[l] + 1);
+                for (int i = 0; i < count; i++) {
+                    putWeight(l, i, source.getWeight(l, i));
+                }
+            }
+        }
+        weightsChanged();
+    }
+
+    /**
+     * Copies the state of the optimizer of another network with the same
+     * topology and precision into the optimizer of this one, which must be
+     * of the same kind.
+     * 
+     * @param source the network to copy the optimizer state from
+     */
+    void copyOptimizerState(final Network source) {
+        if (!Arrays.equals(topology, source.topology) || precision != source.precision) {
+            throw new IllegalArgumentException("The networks have different topologies or precisions.");
+        }
+        final Optimizer sourceOptimizer = source.optimizer;
+        if (optimizer.getClass() != sourceOptimizer.getClass()) {
+            throw new IllegalArgumentException("The networks have different optimizers.");
+        }
+        optimizer.setSteps(sourceOptimizer.getSteps());
+        for (int l = 0; l < topology.length - 1; l++) {
+            if (optimizer instanceof Optimizer.Momentum) {
+                if (floatDeltaWeights != null) {
+                    System.arraycopy(source.floatDeltaWeights[l], 0, floatDeltaWeights[l], 0,
+                            floatDeltaWeights[l].length);
+                } else {
+                    System.arraycopy(source.deltaWeights[l], 0, deltaWeights[l], 0, deltaWeights[l].length);
+                }
+            } else {
+                for (int b = 0; b < optimizer.getStateCount(); b++) {
+                    final double[] state = optimizer.getStateBuffer(b, l);
+                    System.arraycopy(sourceOptimizer.getStateBuffer(b, l), 0, state, 0, state.length);
+                }
+            }
         }
     }
 
@@ -295,4 +1104,155 @@ public class Network {
     public Neuron[] getOutputLayer() {
         return layers[layers.length - 1];
     }
+
+    /**
+     * The passes over a layer that can be split across threads.
+     */
+    private static enum Pass {
+        FORWARD, BACKWARD, UPDATE
+    }
+
+    /**
+     * Splits one pass over a layer into a range of neurons for each thread of
+     * the pool. The step and its parts are reinitialized and run again for
+     * every sample.
+     */
+    @SuppressWarnings("serial")
+    private class LayerStep extends RecursiveAction {
+
+        private final LayerPart[] tasks;
+
+        LayerStep(final Pass pass, final int layer, final int parallelism) {
+            final int size = topology[layer];
+            final int parts = Math.min(parallelism, size);
+            tasks = new LayerPart[parts];
+            for (int p = 0; p < parts; p++) {
+                tasks[p] = new LayerPart(pass, layer, (int) ((long) size * p / parts),
+                        (int) ((long) size * (p + 1) / parts));
+            }
+        }
+
+        @Override
+        protected void compute() {
+            for (final LayerPart task : tasks) {
+                task.reinitialize();
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Runs one pass over a range of neurons in a layer.
+     */
+    @SuppressWarnings("serial")
+    private class LayerPart extends RecursiveAction {
+
+        private final Pass pass;
+        private final int layer;
+        private final int from;
+        private final int to;
+
+        LayerPart(final Pass pass, final int layer, final int from, final int to) {
+            this.pass = pass;
+            this.layer = layer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            switch (pass) {
+            case FORWARD:
+                sumLayer(layer, from, to);
+            break;
+            case BACKWARD:
+                backwardLayer(derivatives, gradients, layer, from, to);
+            break;
+            case UPDATE:
+                updateLayer(outputs, gradients, layer, from, to);
+            break;
+            }
+        }
+    }
+
+    /**
+     * Splits the samples of a batch prediction into a whole number of tiles
+     * for each thread of the pool.
+     */
+    @SuppressWarnings("serial")
+    private class Evaluation extends RecursiveAction {
+
+        private final int parallelism;
+        private final double[][] inputs;
+        private final double[][] results;
+        private final double[][] targetOutputs;
+        /**
+         * The sum of the errors of the samples, which is written when the
+         * evaluation is done.
+         */
+        double error;
+
+        Evaluation(final int parallelism, final double[][] inputs, final double[][] results,
+                final double[][] targetOutputs) {
+            this.parallelism = parallelism;
+            this.inputs = inputs;
+            this.results = results;
+            this.targetOutputs = targetOutputs;
+        }
+
+        @Override
+        protected void compute() {
+            final int count = inputs.length;
+            final int tiles = (count + Batch.TILE_SIZE - 1) / Batch.TILE_SIZE;
+            final int parts = Math.min(parallelism, tiles);
+            if (parts == 0) {
+                return;
+            }
+            final EvaluationPart[] tasks = new EvaluationPart[parts];
+            for (int p = 0; p < parts; p++) {
+                tasks[p] = new EvaluationPart(inputs, results, targetOutputs,
+                        (int) Math.min((long) tiles * p / parts * Batch.TILE_SIZE, count),
+                        (int) Math.min((long) tiles * (p + 1) / parts * Batch.TILE_SIZE, count));
+            }
+            invokeAll(tasks);
+
+            double sum = 0.0;
+            for (final EvaluationPart task : tasks) {
+                sum += task.error;
+            }
+            error = sum;
+        }
+    }
+
+    /**
+     * Feeds forward a range of samples with its own working memory.
+     */
+    @SuppressWarnings("serial")
+    private class EvaluationPart extends RecursiveAction {
+
+        private final double[][] inputs;
+        private final double[][] results;
+        private final double[][] targetOutputs;
+        private final int from;
+        private final int to;
+        /**
+         * The sum of the errors of the samples, which is written when the part
+         * is done.
+         */
+        double error;
+
+        EvaluationPart(final double[][] inputs, final double[][] results, final double[][] targetOutputs,
+                final int from, final int to) {
+            this.inputs = inputs;
+            this.results = results;
+            this.targetOutputs = targetOutputs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            error = new PredictionBatch(topology).predict(Network.this, inputs, results, targetOutputs, from, to);
+        }
+    }
 }
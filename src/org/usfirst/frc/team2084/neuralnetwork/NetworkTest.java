@@ -7,6 +7,7 @@
 package org.usfirst.frc.team2084.neuralnetwork;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 
 /**
@@ -18,9 +19,18 @@ public class NetworkTest {
 
     public static final int MAX_EPOCHS = 100000;
     public static final double MAX_ERROR = 1;
+    /**
+     * The most memory that {@link #allocationTest()} allows to be allocated,
+     * for things that happen once, like the JIT replacing a method, rather
+     * than on every iteration.
+     */
+    public static final long MAX_ALLOCATED_BYTES = 4096;
 
     public static void main(String[] args) {
-        // Uncomment the following lines to choose a test:
+        allocationTest();
+        compilerTest();
+        publisherTest();
+        // Uncomment the following lines to choose a demonstration:
         // testFile();
         selfLearning();
     }
@@ -103,34 +113,24 @@ public class NetworkTest {
             network.feedForward(0);
             System.out.println(Arrays.toString(network.getResults()));
 
-            int epochs = 0;
-            double averageError = 0;
-            while (true) {
-                double error = 0;
-
-                epochs++;
-                for (int i = 0; i < inputs.length; i++) {
-                    double[] input = inputs[i];
-                    double[] targetOutput = targetOutputs[i];
-                    network.feedForward(input);
-                    network.backPropagation(targetOutput);
-                    error += network.getRecentAverageError();
-                }
+            Trainer trainer = new Trainer(network, inputs, targetOutputs);
+            trainer.setMaxEpochs(MAX_EPOCHS);
+            trainer.setTargetError(MAX_ERROR);
 
-                averageError = error / inputs.length;
-                if (epochs % 1000 == 0) {
-                    System.out.println("Error: " + averageError);
+            TrainingMetrics metrics = new TrainingMetrics(network.getTotalLayers());
+            metrics.addListener((m) -> {
+                if (m.getEpochs() % 1000 == 0) {
+                    System.out.println("Error: " + m.getWindowLoss());
                 }
+            });
+            network.setMetrics(metrics);
 
-                if (averageError < MAX_ERROR) {
-                    System.out.println("==============");
-                    System.out.println("Took " + epochs + " epochs to converge.");
-                    break;
-                } else if (epochs >= MAX_EPOCHS) {
-                    System.out.println("==============");
-                    System.out.println("Did not converge after " + epochs + " epochs.");
-                    break;
-                }
+            int epochs = trainer.train();
+            System.out.println("==============");
+            if (trainer.getStopReason() == Trainer.StopReason.TARGET_ERROR) {
+                System.out.println("Took " + epochs + " epochs to converge.");
+            } else {
+                System.out.println("Did not converge after " + epochs + " epochs.");
             }
             // Save the network to an output file
             data.save(new File("data/out.txt"));
@@ -140,4 +140,177 @@ public class NetworkTest {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Checks that inference and training do not allocate any memory once they
+     * have warmed up, which would otherwise cause garbage collection pauses in
+     * a control loop.
+     */
+    public static void allocationTest() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation counting is not supported by this JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        Network network = new Network(new int[] { 4, 16, 8, 2 }, 0.1, 0.5, new TransferFunction.Sigmoid());
+        InferenceModel model = new InferenceModel(network);
+        double[] input = { 0.1, 0.2, 0.3, 0.4 };
+        double[] target = { 0.5, 0.6 };
+        double[] output = new double[2];
+        double[] hidden = new double[16];
+        double[][] inputs = { input, input };
+        double[][] targets = { target, target };
+
+        final int iterations = 100000;
+        // Warm up, so the JIT has compiled everything and all lazily created
+        // buffers exist
+        for (int i = 0; i < iterations; i++) {
+            network.predict(input, output);
+            network.backPropagation(target);
+            network.getLayerOutputs(1, hidden);
+            network.trainBatch(inputs, targets);
+            model.predict(input, output);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            network.predict(input, output);
+            network.backPropagation(target);
+            network.getLayerOutputs(1, hidden);
+            network.trainBatch(inputs, targets);
+            model.predict(input, output);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println("Allocated " + allocated + " bytes in " + iterations + " iterations.");
+        if (allocated > MAX_ALLOCATED_BYTES) {
+            System.out.println("FAILED: the hot path allocates memory.");
+        } else {
+            System.out.println("PASSED");
+        }
+    }
+
+    /**
+     * Checks that {@link ModelCompiler} only returns compiled predictors whose
+     * predict method is small enough for the JIT to compile, using networks
+     * that have almost {@link ModelCompiler#MAX_WEIGHTS} weights, and that
+     * they calculate the same outputs as an {@link InferenceModel}.
+     */
+    public static void compilerTest() {
+        if (!ModelCompiler.isAvailable()) {
+            System.out.println("The Java compiler is not available.");
+            return;
+        }
+        int[][] topologies = { { 8, 99, 1 }, { 30, 30, 1 }, { 2, 27, 27, 1 }, { 120, 8, 1 }, { 300, 3, 1 },
+                { 998, 1 } };
+        boolean passed = true;
+        int compiled = 0;
+        for (int[] topology : topologies) {
+            Network network = new Network(topology, 0.1, 0.5, new TransferFunction.HyperbolicTangent());
+            int size = ModelCompiler.predictSize(network);
+            Predictor predictor = ModelCompiler.compile(network);
+            boolean isCompiled = !(predictor instanceof InferenceModel);
+            System.out.println(Arrays.toString(topology) + ": predict is " + size + " bytes, "
+                    + (isCompiled ? "compiled" : "not compiled"));
+
+            if (isCompiled != (size >= 0 && size <= ModelCompiler.MAX_METHOD_SIZE)) {
+                passed = false;
+            }
+            if (isCompiled) {
+                compiled++;
+                double[] input = new double[topology[0]];
+                for (int i = 0; i < input.length; i++) {
+                    input[i] = Math.sin(i);
+                }
+                double[] expected = new double[topology[topology.length - 1]];
+                double[] output = new double[expected.length];
+                new InferenceModel(network).predict(input, expected);
+                predictor.predict(input, output);
+                if (!Arrays.equals(expected, output)) {
+                    passed = false;
+                }
+            }
+        }
+
+        if (!passed || compiled == 0) {
+            System.out.println("FAILED: a compiled predictor is too large or wrong.");
+        } else {
+            System.out.println("PASSED");
+        }
+    }
+
+    /**
+     * Forces a {@link WeightPublisher} to publish between a prediction
+     * choosing its reader counter and announcing itself in it, and checks that
+     * the prediction chooses again. Once it is registered, it must be waited
+     * for by the publication that overwrites the weights it is using, but not
+     * by the one before.
+     */
+    public static void publisherTest() {
+        Network network = new Network(new int[] { 1, 1 }, 0.1, 0.5, new TransferFunction.HyperbolicTangent());
+        setWeights(network, 1);
+        WeightPublisher publisher = new WeightPublisher(network);
+
+        boolean passed = true;
+        int index = publisher.getReaderIndex();
+        setWeights(network, 2);
+        publisher.publish();
+        if (publisher.register(index)) {
+            System.out.println("The prediction was counted with the wrong publication.");
+            passed = false;
+            publisher.unregister(index);
+        }
+
+        index = publisher.getReaderIndex();
+        if (!publisher.register(index)) {
+            System.out.println("The prediction could not be registered.");
+            passed = false;
+        }
+        try {
+            // This publication overwrites the weights from before the
+            // prediction started, so it must not wait for it
+            setWeights(network, 3);
+            Thread second = new Thread(publisher::publish);
+            second.start();
+            second.join(5000);
+            if (second.isAlive()) {
+                System.out.println("A publication waited for a prediction that started after it.");
+                passed = false;
+            }
+
+            // This one overwrites the weights the prediction is using, so it
+            // must wait for it
+            setWeights(network, 4);
+            Thread third = new Thread(publisher::publish);
+            third.start();
+            third.join(200);
+            if (!third.isAlive()) {
+                System.out.println("A publication overwrote the weights of a running prediction.");
+                passed = false;
+            }
+
+            publisher.unregister(index);
+            second.join();
+            third.join();
+        } catch (InterruptedException e) {
+            passed = false;
+        }
+
+        if (passed) {
+            System.out.println("PASSED");
+        } else {
+            System.out.println("FAILED: a prediction was not protected from a publication.");
+        }
+    }
+
+    /**
+     * Sets the weight and the bias of a network with one input and one output.
+     */
+    private static void setWeights(Network network, double weight) {
+        network.setWeight(0, 0, 0, weight);
+        network.setWeight(0, 1, 0, weight);
+    }
 }
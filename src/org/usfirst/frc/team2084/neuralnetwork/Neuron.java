@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright (c) 2015 RobotsByTheC. All rights reserved.
  *
  * Open Source Software - may be modified and shared by FRC teams. The code must
@@ -7,124 +7,143 @@
 package org.usfirst.frc.team2084.neuralnetwork;
 
 /**
- * Represents a neuron in a neural network.
- * 
+ * Represents a neuron in a neural network. The state of the neuron is stored
+ * in the flat per-layer arrays of its {@link Network}, so this is only a view
+ * of that state. The network itself never goes through these objects when
+ * feeding forward or back-propagating.
+ *
  * @author Ben Wolsieffer
  */
 public class Neuron {
 
     /**
-     * Most recent sum of the inputs multiplied by their connection weights.
-     */
-    private double sum;
-    /**
-     * Most recent output value, which is the transfer function evaluated at the
-     * sum.
+     * The network that holds the state of this neuron.
      */
-    double outputValue;
+    private final Network network;
     /**
-     * Gradient of the neuron. Used in back-propagation.
+     * The index of the layer of this neuron.
      */
-    private double gradient;
-    /**
-     * Transfer function that is used to convert inputs into the output value.
-     */
-    private final TransferFunction transferFunction;
+    private final int layer;
     /**
      * The index in the layer of this neuron.
      */
     private final int index;
-
-    private final Connection[] outputConnections;
+    /**
+     * The number of neurons in the next layer that this neuron feeds.
+     */
+    private final int numberOutputs;
 
     /**
-     * Create a {@link Neuron} with the specified number of outputs, index and
-     * transfer function. This is usually only called by {@link Network}.
-     * 
-     * @param numberOutputs the number of outputs to the next layer
+     * Create a {@link Neuron} view of the specified neuron in a network. This
+     * is only called by {@link Network}.
+     *
+     * @param network the network that holds the state of the neuron
+     * @param layer the index of the layer of the neuron
      * @param index the index of the neuron within the layer
-     * @param transferFunction the neuron's transfer function
+     * @param numberOutputs the number of outputs to the next layer
      */
-    public Neuron(final int numberOutputs, final int index, final TransferFunction transferFunction) {
-        outputConnections = new Connection[numberOutputs];
-        for (int i = 0; i < outputConnections.length; i++) {
-            outputConnections[i] = new Connection();
-        }
+    Neuron(final Network network, final int layer, final int index, final int numberOutputs) {
+        this.network = network;
+        this.layer = layer;
         this.index = index;
-        this.transferFunction = transferFunction;
+        this.numberOutputs = numberOutputs;
     }
 
     /**
      * Sets the output value of the neuron.
-     * 
+     *
      * @param value the output value
      */
     public void setOutputValue(final double value) {
-        outputValue = value;
+        network.computeDerivatives();
+        network.outputs[layer][index] = value;
     }
 
     public double getOutputValue() {
-        return outputValue;
+        return network.outputs[layer][index];
     }
 
+    /**
+     * Gets the connections from this neuron to each neuron in the next layer.
+     * The weights are not stored in the {@link Connection} objects, so this
+     * creates a new array of views each time it is called. Use
+     * {@link Network#getWeight(int, int, int)} to avoid this.
+     *
+     * @return the outgoing connections of this neuron
+     */
     public Connection[] getOutputConnections() {
-        return outputConnections;
+        final Connection[] connections = new Connection[numberOutputs];
+        final int stride = network.getTopology()[layer] + 1;
+        for (int c = 0; c < numberOutputs; c++) {
+            connections[c] = new Connection(network, layer, c * stride + index);
+        }
+        return connections;
     }
 
     public void feedForward(final Neuron[] prevLayer) {
+        network.computeDerivatives();
+        final double[] inputs = network.outputs[layer - 1];
+        final int row = index * inputs.length;
         double sum = 0.0;
 
         // Sum the previous layer's outputs (which are our inputs)
         // Include the bias node from the previous layer.
-        for (final Neuron n : prevLayer) {
-            sum += n.getOutputValue() * n.outputConnections[index].weight;
+        for (int i = 0; i < inputs.length; i++) {
+            sum += inputs[i] * network.getWeight(layer - 1, row + i);
         }
 
         // activate function or transfer sig/gaussian/linear/step
-        outputValue = transferFunction.calculate(sum);
-        this.sum = sum;
+        final TransferFunction transferFunction = network.getTransferFunction();
+        final double output = transferFunction.calculate(sum);
+        network.outputs[layer][index] = output;
+        network.derivatives[layer][index] = transferFunction.derivative(sum, output);
     }
 
     public void calculateOutputGradients(final double targetValue) {
-        gradient = (targetValue - outputValue) * transferFunction.derivative(sum);
+        network.computeDerivatives();
+        network.gradients[layer][index] = (targetValue - getOutputValue()) * network.derivatives[layer][index];
     }
 
     public double sumDOW(final Neuron[] nextLayer) {
+        final double[] nextGradients = network.gradients[layer + 1];
+        final int stride = network.outputs[layer].length;
         double sum = 0.0;
 
         // Sum our contributions of the errors at the nodes we feed.
-        for (int n = 0; n < nextLayer.length - 1; n++) {
-            sum += outputConnections[n].weight * nextLayer[n].gradient;
+        for (int n = 0; n < numberOutputs; n++) {
+            sum += network.getWeight(layer, n * stride + index) * nextGradients[n];
         }
 
         return sum;
     }
 
     public void calculateHiddenGradients(final Neuron[] nextLayer) {
-        gradient = sumDOW(nextLayer) * transferFunction.derivative(sum);
+        network.computeDerivatives();
+        network.gradients[layer][index] = sumDOW(nextLayer) * network.derivatives[layer][index];
     }
 
     public void updateInputWeights(final Neuron[] prevLayer, final double eta, final double momentum) {
-        // The weights to be updated are in the Connection container
-        // in the neurons in the preceding layer
-        for (int n = 0; n < prevLayer.length; n++) {
-            final Neuron neuron = prevLayer[n];
-            final Connection conn = neuron.outputConnections[index];
+        // The weights to be updated are in the row of this neuron in the
+        // weight matrix coming from the preceding layer
+        final double[] inputs = network.outputs[layer - 1];
+        final double gradient = network.gradients[layer][index];
+        final int row = index * inputs.length;
 
-            final double oldDeltaWeight = conn.deltaWeight;
+        for (int n = 0; n < inputs.length; n++) {
             // Individual input, magnified by the gradient and train
             // rate:
             final double newDeltaWeight = eta
-                    * neuron.getOutputValue()
+                    * inputs[n]
                     * gradient
                     // Also add momentum = a fraction of the previous
                     // delta weight;
                     + momentum
-                    * oldDeltaWeight;
+                    * network.getDeltaWeight(layer - 1, row + n);
 
-            conn.deltaWeight = newDeltaWeight;
-            conn.weight += newDeltaWeight;
+            network.setDeltaWeight(layer - 1, row + n, newDeltaWeight);
+            network.putWeight(layer - 1, row + n, network.getWeight(layer - 1, row + n) + newDeltaWeight);
         }
+        network.weightsChanged();
 
     }
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Trains a {@link Network} on a background thread from samples taken by a
+ * control loop, so learning does not add to the latency of the loop. The
+ * control thread calls {@link #predict(double[], double[])}, which uses the
+ * most recently published copy of the weights, and hands samples to the
+ * learner thread with {@link #submit(double[], double[])}. The samples pass
+ * through a lock-free ring buffer, so neither call ever blocks or allocates.
+ *
+ * The learner thread trains on each sample with
+ * {@link Network#feedForward(double...)} and
+ * {@link Network#backPropagation(double...)}, and publishes the weights with a
+ * {@link WeightPublisher} every
+ * {@link #setPublishInterval(int) publish interval} samples, so predictions
+ * always use a consistent set of weights without waiting for training. If the
+ * learner falls behind, samples that have waited longer than the
+ * {@link #setMaxSampleAge(long, TimeUnit) maximum age}, or that are older
+ * than the {@link #setMaxBacklog(int) maximum backlog}, are dropped instead of
+ * being trained on, and if the ring buffer is full, new samples are dropped
+ * when they are submitted.
+ *
+ * The latency of each stage is recorded in a {@link LatencyHistogram}:
+ * predictions, the time samples wait in the ring buffer, training and
+ * publishing.
+ *
+ * Only one thread may submit samples. Once the learner is started, the network
+ * must not be used by any other thread until the learner is closed.
+ *
+ * @author Ben Wolsieffer
+ */
+public class OnlineLearner implements Closeable {
+
+    /**
+     * The default number of samples that can wait to be trained on.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The longest the learner thread sleeps while waiting for samples, so it
+     * notices when it is closed even if a wakeup is missed.
+     */
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Network network;
+    private final SampleRing ring;
+    private final Thread learner;
+
+    private final WeightPublisher publisher;
+
+    private volatile boolean running;
+    /**
+     * Whether the learner thread is, or is about to be, parked waiting for
+     * samples.
+     */
+    private volatile boolean idle;
+
+    private volatile int publishInterval = 1;
+    private volatile long maxSampleAge;
+    private volatile int maxBacklog = Integer.MAX_VALUE;
+
+    private final AtomicLong trained = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    private final LatencyHistogram predictLatency = new LatencyHistogram("predict");
+    private final LatencyHistogram queueLatency = new LatencyHistogram("queue");
+    private final LatencyHistogram trainLatency = new LatencyHistogram("train");
+    private final LatencyHistogram publishLatency = new LatencyHistogram("publish");
+
+    /**
+     * Creates a learner for the specified network with the default capacity.
+     * The current weights are published right away.
+     *
+     * @param network the network to train
+     */
+    public OnlineLearner(final Network network) {
+        this(network, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a learner for the specified network. The current weights are
+     * published right away.
+     *
+     * @param network the network to train
+     * @param capacity the number of samples that can wait to be trained on,
+     *        which is rounded up to a power of two
+     */
+    public OnlineLearner(final Network network, final int capacity) {
+        this.network = network;
+        final int[] topology = network.getTopology();
+        ring = new SampleRing(capacity, topology[0], topology[topology.length - 1]);
+        publisher = new WeightPublisher(network);
+        learner = new Thread(this::learn, "OnlineLearner");
+        learner.setDaemon(true);
+    }
+
+    /**
+     * Starts the learner thread.
+     */
+    public synchronized void start() {
+        if (learner.getState() != Thread.State.NEW) {
+            throw new IllegalStateException("The learner can only be started once.");
+        }
+        running = true;
+        learner.start();
+    }
+
+    /**
+     * Calculates the outputs of the most recently published weights. This
+     * can be called by any number of threads at once.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    public void predict(final double[] inputs, final double[] outputs) {
+        final long start = System.nanoTime();
+        publisher.predict(inputs, outputs);
+        predictLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Hands a sample to the learner thread. The values are copied, so the
+     * arrays can be reused right away. This must only be called by one
+     * thread.
+     *
+     * @param inputs the input values of the sample
+     * @param targetOutputs the target output values of the sample
+     * @return true if the sample was queued, or false if it was dropped
+     *         because the learner is too far behind
+     */
+    public boolean submit(final double[] inputs, final double[] targetOutputs) {
+        final int[] topology = network.getTopology();
+        if (inputs.length != topology[0]) {
+            throw new IllegalArgumentException("inputs needs to be the same size as the input layer - bias");
+        }
+        if (targetOutputs.length != topology[topology.length - 1]) {
+            throw new IllegalArgumentException("targetOutputs needs to be the same size as the output layer - bias");
+        }
+        if (!ring.offer(inputs, targetOutputs, System.nanoTime())) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (idle) {
+            LockSupport.unpark(learner);
+        }
+        return true;
+    }
+
+    /**
+     * The loop of the learner thread.
+     */
+    private void learn() {
+        int sincePublish = 0;
+        while (running) {
+            final int index = ring.peek();
+            if (index < 0) {
+                if (sincePublish > 0) {
+                    // Publish the last few samples before waiting
+                    publish();
+                    sincePublish = 0;
+                }
+                idle = true;
+                // Check again, in case a sample was added before the flag was
+                // set
+                if (ring.peek() < 0 && running) {
+                    LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+
+            final long now = System.nanoTime();
+            final long age = now - ring.getTime(index);
+            queueLatency.record(age);
+            final long maxAge = maxSampleAge;
+            if ((maxAge > 0 && age > maxAge) || ring.size() - 1 > maxBacklog) {
+                stale.incrementAndGet();
+                ring.remove();
+                continue;
+            }
+
+            network.feedForward(ring.getInputs(index));
+            network.backPropagation(ring.getTargetOutputs(index));
+            ring.remove();
+            trainLatency.record(System.nanoTime() - now);
+            trained.incrementAndGet();
+
+            if (++sincePublish >= publishInterval) {
+                publish();
+                sincePublish = 0;
+            }
+        }
+    }
+
+    /**
+     * Publishes the current weights for {@link #predict(double[], double[])}.
+     */
+    private void publish() {
+        final long start = System.nanoTime();
+        publisher.publish();
+        publishLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Stops the learner thread and waits for it to finish. Samples that have
+     * not been trained on yet are discarded, and the weights are published
+     * one last time.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        LockSupport.unpark(learner);
+        boolean interrupted = false;
+        while (learner.isAlive()) {
+            try {
+                learner.join();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        publish();
+    }
+
+    /**
+     * Sets the number of samples to train on between publishing the weights.
+     * The weights are also published whenever the learner runs out of samples.
+     *
+     * @param samples the number of samples
+     */
+    public void setPublishInterval(final int samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("samples must be positive.");
+        }
+        publishInterval = samples;
+    }
+
+    /**
+     * Gets the number of samples to train on between publishing the weights.
+     *
+     * @return the number of samples
+     */
+    public int getPublishInterval() {
+        return publishInterval;
+    }
+
+    /**
+     * Sets how long a sample can wait in the queue before it is too old to
+     * train on.
+     *
+     * @param time the maximum age, or 0 to never drop samples because of
+     *        their age
+     * @param unit the unit of the time
+     */
+    public void setMaxSampleAge(final long time, final TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("time cannot be negative.");
+        }
+        maxSampleAge = unit.toNanos(time);
+    }
+
+    /**
+     * Gets how long a sample can wait in the queue before it is too old to
+     * train on.
+     *
+     * @param unit the unit to return the time in
+     * @return the maximum age, or 0 if samples are never dropped because of
+     *         their age
+     */
+    public long getMaxSampleAge(final TimeUnit unit) {
+        return unit.convert(maxSampleAge, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the number of samples that can be waiting behind the one being
+     * trained on. If there are more, the oldest are dropped, so the learner
+     * catches up to the most recent samples.
+     *
+     * @param samples the maximum backlog, or {@link Integer#MAX_VALUE} to
+     *        never drop samples because of the backlog
+     */
+    public void setMaxBacklog(final int samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("samples cannot be negative.");
+        }
+        maxBacklog = samples;
+    }
+
+    /**
+     * Gets the number of samples that can be waiting behind the one being
+     * trained on.
+     *
+     * @return the maximum backlog
+     */
+    public int getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * Gets the publisher of the weights, which calculates outputs with the
+     * most recently published weights.
+     *
+     * @return the weight publisher
+     */
+    public WeightPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Gets the network that is trained.
+     *
+     * @return the network
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * Gets the number of samples that have been trained on.
+     *
+     * @return the number of samples
+     */
+    public long getSamplesTrained() {
+        return trained.get();
+    }
+
+    /**
+     * Gets the number of times the weights have been published, not counting
+     * the initial copy.
+     *
+     * @return the number of publications
+     */
+    public long getPublications() {
+        return publisher.getPublications();
+    }
+
+    /**
+     * Gets the number of samples that were dropped when they were submitted,
+     * because the queue was full.
+     *
+     * @return the number of samples
+     */
+    public long getRejectedSamples() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the number of samples that were dropped by the learner, because
+     * they were too old or too far behind.
+     *
+     * @return the number of samples
+     */
+    public long getStaleSamples() {
+        return stale.get();
+    }
+
+    /**
+     * Gets the latencies of {@link #predict(double[], double[])}.
+     *
+     * @return the prediction latencies
+     */
+    public LatencyHistogram getPredictLatency() {
+        return predictLatency;
+    }
+
+    /**
+     * Gets the time samples waited in the queue before the learner took them,
+     * including the ones that were dropped as stale.
+     *
+     * @return the queue latencies
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * Gets the time spent training on each sample.
+     *
+     * @return the training latencies
+     */
+    public LatencyHistogram getTrainLatency() {
+        return trainLatency;
+    }
+
+    /**
+     * Gets the time spent publishing the weights.
+     *
+     * @return the publishing latencies
+     */
+    public LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+}
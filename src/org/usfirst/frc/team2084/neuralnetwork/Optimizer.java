@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how much each weight of a {@link Network} changes in response to
+ * its gradient. Every optimizer uses the learning rate (eta) of the network,
+ * and keeps its own per-weight state, such as a running average of the
+ * gradient, in buffers with the same layout as the weight matrices. Because
+ * of this, an optimizer can only be used by one network, which allocates its
+ * state in {@link Network#setOptimizer(Optimizer)}.
+ *
+ * The default is {@link Momentum}, which is plain gradient descent with
+ * momentum. The adaptive optimizers ({@link AdaGrad}, {@link RMSProp} and
+ * {@link Adam}) scale the step of each weight by the history of its own
+ * gradient, which usually lets a network reach a target error in far fewer
+ * epochs.
+ *
+ * @author Ben Wolsieffer
+ */
+public abstract class Optimizer {
+
+    private final int stateCount;
+    /**
+     * The per-weight state, indexed by buffer, layer and weight.
+     */
+    private double[][][] state;
+    private Network network;
+    /**
+     * The number of steps, which is atomic because {@link HogwildTrainer}
+     * starts steps on several threads at once.
+     */
+    private final AtomicLong steps = new AtomicLong();
+
+    /**
+     * Creates an optimizer with the specified number of per-weight state
+     * buffers.
+     *
+     * @param stateCount the number of values stored for each weight
+     */
+    protected Optimizer(final int stateCount) {
+        this.stateCount = stateCount;
+    }
+
+    /**
+     * Allocates the state of the optimizer for a network. This is called by
+     * {@link Network#setOptimizer(Optimizer)}.
+     *
+     * @param network the network that the optimizer is used by
+     */
+    void attach(final Network network) {
+        if (this.network != null && this.network != network) {
+            throw new IllegalStateException("The optimizer is already used by another network.");
+        }
+        this.network = network;
+        final int[] topology = network.getTopology();
+        state = new double[stateCount][topology.length - 1][];
+        for (int b = 0; b < stateCount; b++) {
+            for (int l = 0; l < topology.length - 1; l++) {
+                state[b][l] = new double[topology[l + 1] * (topology[l] + 1)];
+            }
+        }
+        steps.set(0);
+    }
+
+    /**
+     * Called once before each update of the weights of the network, which is
+     * once per sample for {@link Network#backPropagation(double...)}, or once
+     * per batch for mini-batch training. This can be called from several
+     * threads at once, and every call is counted.
+     *
+     * @return the number of steps, including this one
+     */
+    protected long startStep() {
+        return steps.incrementAndGet();
+    }
+
+    /**
+     * Calculates the change of a weight and updates its state. This can be
+     * called from several threads at once, but never for the same weight.
+     *
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @param gradient the direction that decreases the error, which is the
+     *        input of the connection multiplied by the gradient of its
+     *        destination neuron (averaged over the samples of a batch)
+     * @return the amount to add to the weight
+     */
+    protected abstract double delta(int layer, int index, double gradient);
+
+    /**
+     * Gets the network that the optimizer is used by.
+     *
+     * @return the network, or null if it is not used yet
+     */
+    protected Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * Gets the number of values stored for each weight.
+     *
+     * @return the number of state buffers
+     */
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Gets a value of the state of a weight.
+     *
+     * @param buffer the index of the state buffer
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @return the state value
+     */
+    public double getState(final int buffer, final int layer, final int index) {
+        return state[buffer][layer][index];
+    }
+
+    /**
+     * Sets a value of the state of a weight.
+     *
+     * @param buffer the index of the state buffer
+     * @param layer the index of the layer containing the source neuron
+     * @param index the index of the weight in the matrix
+     * @param value the new state value
+     */
+    public void setState(final int buffer, final int layer, final int index, final double value) {
+        state[buffer][layer][index] = value;
+    }
+
+    /**
+     * Gets a state buffer for one layer, so subclasses can update it without
+     * going through {@link #getState(int, int, int)}.
+     *
+     * @param buffer the index of the state buffer
+     * @param layer the index of the layer containing the source neuron
+     * @return the state values, with the same layout as the weight matrix
+     */
+    protected double[] getStateBuffer(final int buffer, final int layer) {
+        return state[buffer][layer];
+    }
+
+    /**
+     * Gets the number of weight updates that have been made.
+     *
+     * @return the number of steps
+     */
+    public long getSteps() {
+        return steps.get();
+    }
+
+    /**
+     * Sets the number of weight updates that have been made. This is used to
+     * resume training from a saved network.
+     *
+     * @param steps the number of steps
+     */
+    public void setSteps(final long steps) {
+        this.steps.set(steps);
+    }
+
+    /**
+     * Gets the hyperparameters of the optimizer, other than the learning rate
+     * and momentum of the network, in the order they are passed to
+     * {@link #forName(String, double...)}.
+     *
+     * @return the hyperparameters
+     */
+    public abstract double[] getParameters();
+
+    /**
+     * Gets the name of the optimizer, which is used in the network data
+     * format.
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * Creates an optimizer with the specified name and hyperparameters. The
+     * names are the same ones returned by {@link #toString()}.
+     *
+     * @param name the name of the optimizer
+     * @param parameters the hyperparameters, as returned by
+     *        {@link #getParameters()}, or none to use the defaults
+     * @return the optimizer, or null if the name is not recognized
+     * @throws IllegalArgumentException if the wrong number of hyperparameters
+     *         is specified
+     */
+    public static Optimizer forName(final String name, final double... parameters) {
+        final boolean defaults = parameters.length == 0;
+        switch (name) {
+        case "momentum":
+            checkParameters(name, parameters, 0);
+            return new Momentum();
+        case "nesterov":
+            checkParameters(name, parameters, 0);
+            return new Nesterov();
+        case "adagrad":
+            checkParameters(name, parameters, 1);
+            return defaults ? new AdaGrad() : new AdaGrad(parameters[0]);
+        case "rmsprop":
+            checkParameters(name, parameters, 2);
+            return defaults ? new RMSProp() : new RMSProp(parameters[0], parameters[1]);
+        case "adam":
+            checkParameters(name, parameters, 3);
+            return defaults ? new Adam() : new Adam(parameters[0], parameters[1], parameters[2]);
+        default:
+            return null;
+        }
+    }
+
+    private static void checkParameters(final String name, final double[] parameters, final int count) {
+        if (parameters.length != 0 && parameters.length != count) {
+            throw new IllegalArgumentException("The " + name + " optimizer takes " + count + " parameters.");
+        }
+    }
+
+    /**
+     * Gradient descent with classic momentum, which is the default. Each
+     * change is the gradient scaled by the learning rate, plus the previous
+     * change scaled by the momentum of the network. The previous changes are
+     * the delta weights of the network (see {@link Connection#getDeltaWeight()}),
+     * so they are stored with the same precision as the weights, and the
+     * network updates them with vectorized kernels instead of calling
+     * {@link #delta(int, int, double)}.
+     */
+    public static final class Momentum extends Optimizer {
+
+        public Momentum() {
+            super(0);
+        }
+
+        @Override
+        protected double delta(final int layer, final int index, final double gradient) {
+            final Network network = getNetwork();
+            final double delta = network.getEta() * gradient
+                    + network.getMomentum() * network.getDeltaWeight(layer, index);
+            network.setDeltaWeight(layer, index, delta);
+            return delta;
+        }
+
+        @Override
+        public int getStateCount() {
+            return 1;
+        }
+
+        @Override
+        public double getState(final int buffer, final int layer, final int index) {
+            return getNetwork().getDeltaWeight(layer, index);
+        }
+
+        @Override
+        public void setState(final int buffer, final int layer, final int index, final double value) {
+            getNetwork().setDeltaWeight(layer, index, value);
+        }
+
+        @Override
+        public double[] getParameters() {
+            return new double[0];
+        }
+
+        @Override
+        public String toString() {
+            return "momentum";
+        }
+    }
+
+    /**
+     * Gradient descent with Nesterov momentum, which applies the gradient
+     * after the momentum step instead of before it. This dampens oscillation,
+     * so a higher momentum can be used than with {@link Momentum}.
+     */
+    public static class Nesterov extends Optimizer {
+
+        public Nesterov() {
+            super(1);
+        }
+
+        @Override
+        protected double delta(final int layer, final int index, final double gradient) {
+            final Network network = getNetwork();
+            final double[] velocities = getStateBuffer(0, layer);
+            final double step = network.getEta() * gradient;
+            final double momentum = network.getMomentum();
+            final double velocity = momentum * velocities[index] + step;
+            velocities[index] = velocity;
+            return momentum * velocity + step;
+        }
+
+        @Override
+        public double[] getParameters() {
+            return new double[0];
+        }
+
+        @Override
+        public String toString() {
+            return "nesterov";
+        }
+    }
+
+    /**
+     * AdaGrad, which divides the step of each weight by the square root of
+     * the sum of its squared gradients. Weights with rare but large gradients
+     * keep learning, but the steps of every weight shrink over time.
+     */
+    public static class AdaGrad extends Optimizer {
+
+        public static final double DEFAULT_EPSILON = 1e-8;
+
+        private final double epsilon;
+
+        public AdaGrad() {
+            this(DEFAULT_EPSILON);
+        }
+
+        /**
+         * Creates an AdaGrad optimizer.
+         *
+         * @param epsilon the value added to the denominator to avoid division
+         *        by zero
+         */
+        public AdaGrad(final double epsilon) {
+            super(1);
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        protected double delta(final int layer, final int index, final double gradient) {
+            final double[] sums = getStateBuffer(0, layer);
+            final double sum = sums[index] + gradient * gradient;
+            sums[index] = sum;
+            return getNetwork().getEta() * gradient / (Math.sqrt(sum) + epsilon);
+        }
+
+        public double getEpsilon() {
+            return epsilon;
+        }
+
+        @Override
+        public double[] getParameters() {
+            return new double[] { epsilon };
+        }
+
+        @Override
+        public String toString() {
+            return "adagrad";
+        }
+    }
+
+    /**
+     * RMSProp, which divides the step of each weight by the square root of a
+     * decaying average of its squared gradients, so that unlike
+     * {@link AdaGrad}, the steps do not shrink forever.
+     */
+    public static class RMSProp extends Optimizer {
+
+        public static final double DEFAULT_DECAY = 0.9;
+        public static final double DEFAULT_EPSILON = 1e-8;
+
+        private final double decay;
+        private final double epsilon;
+
+        public RMSProp() {
+            this(DEFAULT_DECAY, DEFAULT_EPSILON);
+        }
+
+        /**
+         * Creates an RMSProp optimizer.
+         *
+         * @param decay the fraction of the average of the squared gradients
+         *        kept at each step
+         * @param epsilon the value added to the denominator to avoid division
+         *        by zero
+         */
+        public RMSProp(final double decay, final double epsilon) {
+            super(1);
+            this.decay = decay;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        protected double delta(final int layer, final int index, final double gradient) {
+            final double[] averages = getStateBuffer(0, layer);
+            final double average = decay * averages[index] + (1.0 - decay) * gradient * gradient;
+            averages[index] = average;
+            return getNetwork().getEta() * gradient / (Math.sqrt(average) + epsilon);
+        }
+
+        public double getDecay() {
+            return decay;
+        }
+
+        public double getEpsilon() {
+            return epsilon;
+        }
+
+        @Override
+        public double[] getParameters() {
+            return new double[] { decay, epsilon };
+        }
+
+        @Override
+        public String toString() {
+            return "rmsprop";
+        }
+    }
+
+    /**
+     * Adam, which combines a decaying average of the gradient (like momentum)
+     * with the per-weight scaling of {@link RMSProp}, and corrects both
+     * averages for their bias towards zero during the first steps.
+     */
+    public static class Adam extends Optimizer {
+
+        public static final double DEFAULT_BETA1 = 0.9;
+        public static final double DEFAULT_BETA2 = 0.999;
+        public static final double DEFAULT_EPSILON = 1e-8;
+
+        private final double beta1;
+        private final double beta2;
+        private final double epsilon;
+        /**
+         * The learning rate divided by the bias correction of the first
+         * moment, and the bias correction of the second moment, for the
+         * current step. When several threads start steps at once, these can
+         * come from two different steps, but the corrections of neighboring
+         * steps are almost the same.
+         */
+        private double stepSize;
+        private double correction2;
+
+        public Adam() {
+            this(DEFAULT_BETA1, DEFAULT_BETA2, DEFAULT_EPSILON);
+        }
+
+        /**
+         * Creates an Adam optimizer.
+         *
+         * @param beta1 the fraction of the average of the gradients kept at
+         *        each step
+         * @param beta2 the fraction of the average of the squared gradients
+         *        kept at each step
+         * @param epsilon the value added to the denominator to avoid division
+         *        by zero
+         */
+        public Adam(final double beta1, final double beta2, final double epsilon) {
+            super(2);
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        protected long startStep() {
+            final long steps = super.startStep();
+            stepSize = getNetwork().getEta() / (1.0 - Math.pow(beta1, steps));
+            correction2 = 1.0 - Math.pow(beta2, steps);
+            return steps;
+        }
+
+        @Override
+        protected double delta(final int layer, final int index, final double gradient) {
+            final double[] means = getStateBuffer(0, layer);
+            final double[] variances = getStateBuffer(1, layer);
+            final double mean = beta1 * means[index] + (1.0 - beta1) * gradient;
+            final double variance = beta2 * variances[index] + (1.0 - beta2) * gradient * gradient;
+            means[index] = mean;
+            variances[index] = variance;
+            return stepSize * mean / (Math.sqrt(variance / correction2) + epsilon);
+        }
+
+        public double getBeta1() {
+            return beta1;
+        }
+
+        public double getBeta2() {
+            return beta2;
+        }
+
+        public double getEpsilon() {
+            return epsilon;
+        }
+
+        @Override
+        public double[] getParameters() {
+            return new double[] { beta1, beta2, epsilon };
+        }
+
+        @Override
+        public String toString() {
+            return "adam";
+        }
+    }
+}
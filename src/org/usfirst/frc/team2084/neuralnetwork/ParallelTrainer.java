@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.usfirst.frc.team2084.neuralnetwork.Data.FormatException;
+
+/**
+ * Trains a {@link Network} with mini-batches that are split across the threads
+ * of a {@link ForkJoinPool}. Each thread calculates the weight gradients of
+ * its share of the batch into its own buffers, while the weights are only read.
+ * The buffers are then summed and a single update is applied, so the result is
+ * the same as {@link Network#trainBatch(double[][], double[][])} with the same
+ * batch, except for rounding caused by the different order of the additions.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ParallelTrainer {
+
+    /**
+     * The number of weights below which a range of the reduction is not split
+     * any further.
+     */
+    private static final int REDUCE_THRESHOLD = 1 << 14;
+
+    private final Network network;
+    private final ForkJoinPool pool;
+    /**
+     * Gradient buffers for each worker. The first one also holds the reduced
+     * gradients.
+     */
+    private final Batch[] workers;
+    /**
+     * Buffers for one batch of samples read from a {@link TrainingSource},
+     * which are only allocated if they are used.
+     */
+    private double[][] sourceInputs;
+    private double[][] sourceTargetOutputs;
+
+    /**
+     * Creates a trainer for the specified network that uses the common
+     * {@link ForkJoinPool}.
+     *
+     * @param network the network to train
+     */
+    public ParallelTrainer(final Network network) {
+        this(network, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a trainer for the specified network that uses the specified
+     * pool. The batches are split into as many parts as the pool has threads.
+     *
+     * @param network the network to train
+     * @param pool the pool to run on
+     */
+    public ParallelTrainer(final Network network, final ForkJoinPool pool) {
+        this.network = network;
+        this.pool = pool;
+
+        workers = new Batch[pool.getParallelism()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Batch(network.getTopology());
+        }
+    }
+
+    /**
+     * Trains the network on one epoch of samples, applying a weight update
+     * after every {@code batchSize} samples. The last batch may be smaller.
+     *
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     * @param batchSize the number of samples in each batch
+     * @return the average error of the samples, as calculated before each
+     *         update
+     * 
+     * @see TrainingMetrics
+     */
+    public double trainEpoch(final double[][] inputs, final double[][] targetOutputs, final int batchSize) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive.");
+        }
+
+        final TrainingMetrics metrics = network.getMetrics();
+        if (metrics != null) {
+            metrics.startEpoch();
+        }
+        double error = 0.0;
+        for (int start = 0; start < inputs.length; start += batchSize) {
+            error += trainBatch(inputs, targetOutputs, start, Math.min(start + batchSize, inputs.length));
+        }
+        if (metrics != null) {
+            metrics.endEpoch();
+        }
+        return inputs.length > 0 ? error / inputs.length : 0.0;
+    }
+
+    /**
+     * Trains the network on one epoch of samples read from a training source,
+     * applying a weight update after every {@code batchSize} samples. Only one
+     * batch of samples is held in memory at a time. The source is reset before
+     * the epoch starts.
+     *
+     * @param source the source of the samples
+     * @param batchSize the number of samples in each batch
+     * @return the average error of the samples, as calculated before each
+     *         update
+     *
+     * @throws IOException if there is a problem reading the samples
+     * @throws FormatException if the samples contain an error
+     */
+    public double trainEpoch(final TrainingSource source, final int batchSize) throws IOException, FormatException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive.");
+        }
+        final int[] topology = network.getTopology();
+        if (source.getInputSize() != topology[0] || source.getOutputSize() != topology[topology.length - 1]) {
+            throw new IllegalArgumentException("The samples do not match the topology of the network.");
+        }
+
+        // Reuse the batch buffers from the previous epoch if possible
+        if (sourceInputs == null || sourceInputs.length != batchSize) {
+            sourceInputs = new double[batchSize][topology[0]];
+            sourceTargetOutputs = new double[batchSize][topology[topology.length - 1]];
+        }
+
+        source.reset();
+        final TrainingMetrics metrics = network.getMetrics();
+        if (metrics != null) {
+            metrics.startEpoch();
+        }
+        double error = 0.0;
+        long samples = 0;
+        int count;
+        do {
+            count = 0;
+            while (count < batchSize && source.next(sourceInputs[count], sourceTargetOutputs[count])) {
+                count++;
+            }
+            error += trainBatch(sourceInputs, sourceTargetOutputs, 0, count);
+            samples += count;
+        } while (count == batchSize);
+        if (metrics != null) {
+            metrics.endEpoch();
+        }
+
+        return samples > 0 ? error / samples : 0.0;
+    }
+
+    /**
+     * Trains the network on a range of samples as a single batch.
+     *
+     * @param inputs the input values of each sample
+     * @param targetOutputs the target output values of each sample
+     * @param from the index of the first sample in the batch (inclusive)
+     * @param to the index of the last sample in the batch (exclusive)
+     * @return the sum of the errors of the samples in the batch
+     */
+    public double trainBatch(final double[][] inputs, final double[][] targetOutputs, final int from, final int to) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        final int count = to - from;
+        if (count <= 0) {
+            return 0.0;
+        }
+        // Check every part before any of them start, so a bad sample does not
+        // leave gradients behind in the workers that already finished
+        Batch.checkSamples(network.getTopology(), inputs, targetOutputs, from, to);
+
+        // Split the batch into whole tiles, with at most one part per worker
+        final int tiles = (count + Batch.TILE_SIZE - 1) / Batch.TILE_SIZE;
+        final int parts = Math.min(workers.length, tiles);
+        final int partSize = ((tiles + parts - 1) / parts) * Batch.TILE_SIZE;
+
+        final double[] errors = new double[parts];
+        pool.invoke(new Step(inputs, targetOutputs, from, to, parts, partSize, errors));
+
+        network.applyGradients(workers[0].weightGradients, count);
+
+        double error = 0.0;
+        for (final double e : errors) {
+            error += e;
+        }
+        final TrainingMetrics metrics = network.getMetrics();
+        if (metrics != null) {
+            metrics.recordLoss(error, count);
+        }
+        return error;
+    }
+
+    /**
+     * Calculates the gradients of each part of a batch in parallel, and then
+     * reduces them.
+     */
+    @SuppressWarnings("serial")
+    private class Step extends RecursiveAction {
+
+        private final double[][] inputs;
+        private final double[][] targetOutputs;
+        private final int from;
+        private final int to;
+        private final int parts;
+        private final int partSize;
+        private final double[] errors;
+
+        Step(final double[][] inputs, final double[][] targetOutputs, final int from, final int to, final int parts,
+                final int partSize, final double[] errors) {
+            this.inputs = inputs;
+            this.targetOutputs = targetOutputs;
+            this.from = from;
+            this.to = to;
+            this.parts = parts;
+            this.partSize = partSize;
+            this.errors = errors;
+        }
+
+        @Override
+        protected void compute() {
+            final Part[] tasks = new Part[parts];
+            for (int p = 0; p < parts; p++) {
+                final int start = from + p * partSize;
+                tasks[p] = new Part(this, p, start, Math.min(start + partSize, to));
+            }
+            invokeAll(tasks);
+
+            // Sum the gradients of every part into the first worker
+            final double[][] reduced = workers[0].weightGradients;
+            final Reduction[] reductions = new Reduction[reduced.length];
+            for (int l = 0; l < reduced.length; l++) {
+                reductions[l] = new Reduction(l, parts, 0, reduced[l].length);
+            }
+            invokeAll(reductions);
+        }
+    }
+
+    /**
+     * Calculates the gradients of one part of a batch using the buffers of one
+     * worker.
+     */
+    @SuppressWarnings("serial")
+    private class Part extends RecursiveAction {
+
+        private final Step step;
+        private final int worker;
+        private final int from;
+        private final int to;
+
+        Part(final Step step, final int worker, final int from, final int to) {
+            this.step = step;
+            this.worker = worker;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            step.errors[worker] = workers[worker].accumulate(network, step.inputs, step.targetOutputs, from, to);
+        }
+    }
+
+    /**
+     * Adds a range of the weight gradients of each worker to those of the
+     * first worker, and clears them.
+     */
+    @SuppressWarnings("serial")
+    private class Reduction extends RecursiveAction {
+
+        private final int layer;
+        private final int parts;
+        private final int from;
+        private final int to;
+
+        Reduction(final int layer, final int parts, final int from, final int to) {
+            this.layer = layer;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > REDUCE_THRESHOLD) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new Reduction(layer, parts, from, middle), new Reduction(layer, parts, middle, to));
+            } else {
+                final double[] reduced = workers[0].weightGradients[layer];
+                for (int p = 1; p < parts; p++) {
+                    final double[] gradients = workers[p].weightGradients[layer];
+                    for (int i = from; i < to; i++) {
+                        reduced[i] += gradients[i];
+                        gradients[i] = 0.0;
+                    }
+                }
+            }
+        }
+    }
+}
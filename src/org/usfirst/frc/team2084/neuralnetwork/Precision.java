@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * The precision that the weights of a {@link Network} are stored in. The
+ * outputs and gradients of the neurons are always doubles, because there are
+ * only as many of them as there are neurons, but the weight matrices grow with
+ * the square of the layer size and usually dominate the memory footprint of a
+ * network.
+ *
+ * @author Ben Wolsieffer
+ */
+public enum Precision {
+
+    /**
+     * Weights are stored as 64-bit {@code double}s.
+     */
+    DOUBLE("double", Double.BYTES),
+    /**
+     * Weights are stored as 32-bit {@code float}s, which halves the memory
+     * used by the weights and the bandwidth needed to read them. Each weight
+     * is widened to a double when it is used, because the outputs and sums
+     * are doubles, so the arithmetic is not any faster. This only speeds up
+     * networks whose weights do not fit in the cache, where reading them is
+     * the bottleneck.
+     */
+    FLOAT("float", Float.BYTES);
+
+    private final String name;
+    private final int bytes;
+
+    private Precision(final String name, final int bytes) {
+        this.name = name;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Gets the size of each weight in bytes.
+     *
+     * @return the size of a weight
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the name of the precision, which is used in the network data
+     * format.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Gets the precision with the specified name. The names are the same ones
+     * returned by {@link #toString()}.
+     *
+     * @param name the name of the precision
+     * @return the precision, or null if the name is not recognized
+     */
+    public static Precision forName(final String name) {
+        for (final Precision precision : values()) {
+            if (precision.name.equals(name)) {
+                return precision;
+            }
+        }
+        return null;
+    }
+}
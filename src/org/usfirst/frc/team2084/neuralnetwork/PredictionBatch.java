@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * Working memory for batched inference. Samples are fed forward a tile at a
+ * time, like in {@link Batch}, so each row of weights is loaded once per tile
+ * instead of once per sample, but no derivatives or gradients are calculated
+ * or stored. A prediction batch only reads the weights, so several of them can
+ * be used with the same network at once.
+ *
+ * @author Ben Wolsieffer
+ */
+final class PredictionBatch {
+
+    private final int[] topology;
+    /**
+     * The outputs of each layer for each sample in the tile, one row of
+     * {@code topology[l] + 1} per sample (the last column is the bias).
+     */
+    private final double[][] outputs;
+
+    /**
+     * Creates the working memory for a network with the specified topology.
+     *
+     * @param topology the topology of the network
+     */
+    PredictionBatch(final int[] topology) {
+        this.topology = topology;
+        outputs = new double[topology.length][];
+        for (int l = 0; l < topology.length; l++) {
+            final int size = topology[l];
+            final double[] layerOutputs = outputs[l] = new double[Batch.TILE_SIZE * (size + 1)];
+            for (int b = 0; b < Batch.TILE_SIZE; b++) {
+                layerOutputs[b * (size + 1) + size] = 1.0;
+            }
+        }
+    }
+
+    /**
+     * Feeds forward a range of samples, storing their outputs and calculating
+     * their errors.
+     *
+     * @param network the network to calculate the outputs of
+     * @param inputs the input values of each sample
+     * @param results the arrays to store the output values of each sample in,
+     *        or null if they are not needed
+     * @param targetOutputs the target output values of each sample, or null if
+     *        the error is not needed
+     * @param from the index of the first sample (inclusive)
+     * @param to the index of the last sample (exclusive)
+     * @return the sum of the errors of the samples, or 0 if there are no
+     *         target outputs
+     */
+    double predict(final Network network, final double[][] inputs, final double[][] results,
+            final double[][] targetOutputs, final int from, final int to) {
+        final double[][] weights = network.weights;
+        final float[][] floatWeights = network.floatWeights;
+        final TransferFunction transferFunction = network.getTransferFunction();
+        final int outputLayer = topology.length - 1;
+        final int inputSize = topology[0];
+        final int outputSize = topology[outputLayer];
+        double error = 0.0;
+
+        for (int start = from; start < to; start += Batch.TILE_SIZE) {
+            final int count = Math.min(Batch.TILE_SIZE, to - start);
+
+            // Copy the inputs into the first layer
+            final double[] inputLayer = outputs[0];
+            for (int b = 0; b < count; b++) {
+                final double[] input = inputs[start + b];
+                if (input.length != inputSize) {
+                    throw new IllegalArgumentException("Incorrect number of inputs in set " + (start + b));
+                }
+                System.arraycopy(input, 0, inputLayer, b * (inputSize + 1), inputSize);
+            }
+
+            for (int l = 1; l <= outputLayer; l++) {
+                if (floatWeights != null) {
+                    Kernels.activateBatch(floatWeights[l - 1], outputs[l - 1], topology[l - 1] + 1, outputs[l],
+                            topology[l], count, transferFunction);
+                } else {
+                    Kernels.activateBatch(weights[l - 1], outputs[l - 1], topology[l - 1] + 1, outputs[l],
+                            topology[l], count, transferFunction);
+                }
+            }
+
+            final double[] outputValues = outputs[outputLayer];
+            for (int b = 0; b < count; b++) {
+                final int row = b * (outputSize + 1);
+                if (results != null) {
+                    final double[] result = results[start + b];
+                    if (result.length != outputSize) {
+                        throw new IllegalArgumentException("Incorrect number of outputs in set " + (start + b));
+                    }
+                    System.arraycopy(outputValues, row, result, 0, outputSize);
+                }
+                if (targetOutputs != null) {
+                    final double[] targetOutput = targetOutputs[start + b];
+                    if (targetOutput.length != outputSize) {
+                        throw new IllegalArgumentException(
+                                "Incorrect number of target outputs in set " + (start + b));
+                    }
+                    double sampleError = 0.0;
+                    for (int n = 0; n < outputSize; n++) {
+                        final double delta = targetOutput[n] - outputValues[row + n];
+                        sampleError += delta * delta;
+                    }
+                    error += sampleError * 0.5;
+                }
+            }
+        }
+
+        return error;
+    }
+}
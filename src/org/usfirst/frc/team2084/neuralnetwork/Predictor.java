@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * Calculates the outputs of a frozen network. Implementations can be called by
+ * any number of threads at once.
+ *
+ * @author Ben Wolsieffer
+ *
+ * @see InferenceModel
+ * @see ModelCompiler
+ */
+public interface Predictor {
+
+    /**
+     * Calculates the outputs for the specified inputs.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    public void predict(double[] inputs, double[] outputs);
+
+    /**
+     * Gets the topology of the network, with each element containing the size
+     * of a layer.
+     *
+     * @return a copy of the topology
+     */
+    public int[] getTopology();
+}
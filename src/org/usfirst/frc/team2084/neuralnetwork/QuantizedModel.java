@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.usfirst.frc.team2084.neuralnetwork.Data.FormatException;
+
+/**
+ * A copy of a trained {@link Network} with 8-bit integer weights and
+ * activations, for controllers with little memory or slow floating point
+ * math. It is created by {@link #quantize(Network, double[][])}, which runs a
+ * set of calibration inputs (such as {@link Data#getInputs()}) through the
+ * network to find the range of the values in each layer.
+ *
+ * The weights of each layer share one scale, and are stored as
+ * {@code round(weight / scale)}. The inputs and the outputs of each layer
+ * (both before and after the transfer function) are stored with a scale and a
+ * zero point, as {@code round(value / scale) + zeroPoint}, so that an
+ * asymmetric range like the output of a sigmoid uses all 256 levels. Each
+ * neuron multiplies its 8-bit weights and inputs and sums them in a 32-bit
+ * integer, along with its bias, which is stored as a 32-bit integer. In the
+ * hidden layers, the sum is rescaled with a fixed-point multiplier to an index
+ * into a table of 1024 quantized outputs of the transfer function, so they do
+ * not need any floating point math. The table only covers the range of sums
+ * in which the quantized output changes, so a saturating function like
+ * {@code tanh} keeps a fine resolution even if some sums are large. Only the
+ * output layer is converted back to doubles and passed through the transfer
+ * function itself, to keep the outputs precise.
+ *
+ * Inputs and values outside of the calibrated ranges are clamped, so the
+ * calibration inputs should cover the whole range of inputs the model will
+ * see. The difference from the original network on the calibration inputs is
+ * measured when the model is created, and can be measured on other inputs
+ * with {@link #measureError(Network, double[][])}.
+ *
+ * The model can be saved in its own binary format, which stores one byte per
+ * weight, about an eighth of the size of a {@link BinaryModel} file. Like
+ * {@link InferenceModel}, the model can be used from several threads at once.
+ *
+ * @author Ben Wolsieffer
+ */
+public final class QuantizedModel implements Predictor {
+
+    /**
+     * The magic number at the start of every file, "JNNQ" in ASCII.
+     */
+    private static final int MAGIC = 0x514E4E4A;
+    private static final int VERSION = 1;
+    /**
+     * The number of entries in the table of the transfer function of each
+     * hidden layer.
+     */
+    private static final int TABLE_SIZE = 1024;
+    /**
+     * The number of points checked when trimming the range of the sums of a
+     * layer.
+     */
+    private static final int TRIM_STEPS = 4096;
+
+    /**
+     * Buffers that hold the 8-bit outputs of each layer while calculating a
+     * prediction. A scratch object must only be used by one thread at a time.
+     */
+    public static final class Scratch {
+
+        private final byte[][] outputs;
+
+        private Scratch(final int[] topology) {
+            outputs = new byte[topology.length - 1][];
+            for (int l = 0; l < outputs.length; l++) {
+                outputs[l] = new byte[topology[l]];
+            }
+        }
+    }
+
+    private final int[] topology;
+    private final TransferFunction transferFunction;
+
+    /**
+     * The scale and zero point of the inputs.
+     */
+    private final double inputScale;
+    private final int inputZeroPoint;
+    /**
+     * The scale of the weights coming into each layer, indexed by the layer
+     * the weights come from.
+     */
+    private final double[] weightScales;
+    /**
+     * The scale and zero point of the sums of each layer (before the transfer
+     * function), and of its outputs, indexed by the layer the weights come
+     * from. The sums are quantized to an index into the table of the layer,
+     * rather than to a byte. The sum and output parameters of the output layer
+     * are not used.
+     */
+    private final double[] sumScales;
+    private final int[] sumZeroPoints;
+    private final double[] outputScales;
+    private final int[] outputZeroPoints;
+    /**
+     * The quantized weights of each layer, in the same layout as the weight
+     * matrices of the network, but without the bias column.
+     */
+    private final byte[][] weights;
+    /**
+     * The quantized bias of each neuron, with the same scale as the integer
+     * sums.
+     */
+    private final int[][] biases;
+
+    /**
+     * The bias of each neuron minus the correction for the zero point of its
+     * inputs, which is what each integer sum starts from.
+     */
+    private final int[][] offsets;
+    /**
+     * The fixed-point multiplier and right shift that rescale the integer sums
+     * of each hidden layer to the scale of its quantized sums.
+     */
+    private final int[] multipliers;
+    private final int[] shifts;
+    /**
+     * The quantized output of the transfer function for each quantized sum of
+     * each hidden layer, indexed by the quantized sum.
+     */
+    private final byte[][] tables;
+
+    private double meanError;
+    private double maxError;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(this::newScratch);
+
+    private QuantizedModel(final int[] topology, final TransferFunction transferFunction, final double inputScale,
+            final int inputZeroPoint, final double[] weightScales, final double[] sumScales,
+            final int[] sumZeroPoints, final double[] outputScales, final int[] outputZeroPoints,
+            final byte[][] weights, final int[][] biases) {
+        this.topology = topology;
+        this.transferFunction = transferFunction;
+        this.inputScale = inputScale;
+        this.inputZeroPoint = inputZeroPoint;
+        this.weightScales = weightScales;
+        this.sumScales = sumScales;
+        this.sumZeroPoints = sumZeroPoints;
+        this.outputScales = outputScales;
+        this.outputZeroPoints = outputZeroPoints;
+        this.weights = weights;
+        this.biases = biases;
+
+        final int layers = topology.length - 1;
+        offsets = new int[layers][];
+        multipliers = new int[layers];
+        shifts = new int[layers];
+        tables = new byte[layers][];
+        for (int l = 0; l < layers; l++) {
+            final int inputs = topology[l];
+            final int zeroPoint = l == 0 ? inputZeroPoint : outputZeroPoints[l - 1];
+            offsets[l] = new int[topology[l + 1]];
+            for (int j = 0; j < topology[l + 1]; j++) {
+                int sum = 0;
+                for (int i = 0; i < inputs; i++) {
+                    sum += weights[l][j * inputs + i];
+                }
+                offsets[l][j] = biases[l][j] - zeroPoint * sum;
+            }
+
+            if (l < layers - 1) {
+                // Split the ratio of the scales into a 31 bit multiplier and a
+                // shift
+                final double ratio = weightScales[l] * inputScale(l) / sumScales[l];
+                int shift = 30 - Math.getExponent(ratio);
+                long multiplier = Math.round(Math.scalb(ratio, shift));
+                if (multiplier >= 1L << 31) {
+                    multiplier >>= 1;
+                    shift--;
+                }
+                if (shift > 62) {
+                    multiplier = 0;
+                    shift = 62;
+                } else if (shift < 1) {
+                    // Every nonzero sum is far outside of the table anyway
+                    multiplier = Integer.MAX_VALUE;
+                    shift = 1;
+                }
+                multipliers[l] = (int) multiplier;
+                shifts[l] = shift;
+
+                final byte[] table = tables[l] = new byte[TABLE_SIZE];
+                for (int q = 0; q < TABLE_SIZE; q++) {
+                    final double output = transferFunction.calculate(sumScales[l] * (q - sumZeroPoints[l]));
+                    table[q] = (byte) quantize(output, outputScales[l], outputZeroPoints[l]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Quantizes a network, using the specified inputs to find the range of the
+     * values in each layer.
+     *
+     * @param network the network to quantize
+     * @param calibrationInputs representative input values, formatted like
+     *        {@link Data#getInputs()}
+     * @return the quantized model
+     */
+    public static QuantizedModel quantize(final Network network, final double[][] calibrationInputs) {
+        if (calibrationInputs.length == 0) {
+            throw new IllegalArgumentException("There must be at least one calibration input.");
+        }
+        final int[] topology = network.getTopology().clone();
+        final int layers = topology.length - 1;
+        final TransferFunction transferFunction = network.getTransferFunction();
+
+        // Find the range of the inputs, sums and outputs of each layer
+        final double[] inputRange = { 0, 0 };
+        final double[][] sumRanges = new double[layers][2];
+        final double[][] outputRanges = new double[layers][2];
+        final double[][] values = new double[topology.length][];
+        for (int l = 0; l < topology.length; l++) {
+            values[l] = new double[topology[l] + 1];
+            values[l][topology[l]] = 1.0;
+        }
+        for (final double[] input : calibrationInputs) {
+            if (input.length != topology[0]) {
+                throw new IllegalArgumentException("inputs needs to be the same size as the input layer - bias");
+            }
+            for (int i = 0; i < topology[0]; i++) {
+                values[0][i] = input[i];
+                extend(inputRange, input[i]);
+            }
+            for (int l = 0; l < layers; l++) {
+                final int stride = topology[l] + 1;
+                for (int j = 0; j < topology[l + 1]; j++) {
+                    double sum = 0.0;
+                    for (int i = 0; i < stride; i++) {
+                        sum += network.getWeight(l, j * stride + i) * values[l][i];
+                    }
+                    final double output = transferFunction.calculate(sum);
+                    values[l + 1][j] = output;
+                    extend(sumRanges[l], sum);
+                    extend(outputRanges[l], output);
+                }
+            }
+        }
+
+        final double inputScale = scale(inputRange);
+        final int inputZeroPoint = zeroPoint(inputRange, inputScale);
+        final double[] weightScales = new double[layers];
+        final double[] sumScales = new double[layers];
+        final int[] sumZeroPoints = new int[layers];
+        final double[] outputScales = new double[layers];
+        final int[] outputZeroPoints = new int[layers];
+        final byte[][] weights = new byte[layers][];
+        final int[][] biases = new int[layers][];
+        for (int l = 0; l < layers; l++) {
+            outputScales[l] = scale(outputRanges[l]);
+            outputZeroPoints[l] = zeroPoint(outputRanges[l], outputScales[l]);
+            trim(sumRanges[l], transferFunction, outputScales[l], outputZeroPoints[l]);
+            sumScales[l] = (sumRanges[l][1] - sumRanges[l][0]) / (TABLE_SIZE - 1);
+            if (!(sumScales[l] > 0)) {
+                sumScales[l] = 1.0;
+            }
+            sumZeroPoints[l] = (int) clamp(Math.round(-sumRanges[l][0] / sumScales[l]), Integer.MIN_VALUE,
+                    Integer.MAX_VALUE);
+
+            // The weights are symmetric, so they do not need a zero point
+            final int inputs = topology[l];
+            final int stride = inputs + 1;
+            double maxWeight = 0;
+            for (int j = 0; j < topology[l + 1]; j++) {
+                for (int i = 0; i < inputs; i++) {
+                    maxWeight = Math.max(maxWeight, Math.abs(network.getWeight(l, j * stride + i)));
+                }
+            }
+            final double weightScale = weightScales[l] = maxWeight > 0 ? maxWeight / 127 : 1.0;
+            final double biasScale = weightScale * (l == 0 ? inputScale : outputScales[l - 1]);
+            final byte[] layerWeights = weights[l] = new byte[topology[l + 1] * inputs];
+            final int[] layerBiases = biases[l] = new int[topology[l + 1]];
+            for (int j = 0; j < topology[l + 1]; j++) {
+                for (int i = 0; i < inputs; i++) {
+                    layerWeights[j * inputs + i] = (byte) clamp(
+                            Math.round(network.getWeight(l, j * stride + i) / weightScale), -127, 127);
+                }
+                layerBiases[j] = (int) clamp(Math.round(network.getWeight(l, j * stride + inputs) / biasScale),
+                        Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+        }
+
+        final QuantizedModel model = new QuantizedModel(topology, transferFunction, inputScale, inputZeroPoint,
+                weightScales, sumScales, sumZeroPoints, outputScales, outputZeroPoints, weights, biases);
+        final double[] error = model.compare(new InferenceModel(network), calibrationInputs);
+        model.meanError = error[0];
+        model.maxError = error[1];
+        return model;
+    }
+
+    /**
+     * Quantizes the network of a data file, using its inputs for calibration.
+     *
+     * @param data the network and its inputs
+     * @return the quantized model
+     */
+    public static QuantizedModel quantize(final Data data) {
+        return quantize(data.getNetwork(), data.getInputs());
+    }
+
+    private static void extend(final double[] range, final double value) {
+        if (value < range[0]) {
+            range[0] = value;
+        } else if (value > range[1]) {
+            range[1] = value;
+        }
+    }
+
+    /**
+     * Calculates the scale that maps a range, which always contains 0, onto
+     * the 256 levels of a byte.
+     */
+    private static double scale(final double[] range) {
+        final double scale = (range[1] - range[0]) / 255;
+        return scale > 0 ? scale : 1.0;
+    }
+
+    /**
+     * Calculates the zero point that maps the bottom of a range to -128.
+     */
+    private static int zeroPoint(final double[] range, final double scale) {
+        return (int) clamp(Math.round(-128 - range[0] / scale), -128, 127);
+    }
+
+    /**
+     * Shrinks the range of the sums of a layer to the part in which the
+     * quantized output of the transfer function changes. Sums outside of the
+     * trimmed range are clamped to it, which does not change their output.
+     */
+    private static void trim(final double[] range, final TransferFunction transferFunction, final double scale,
+            final int zeroPoint) {
+        final double step = (range[1] - range[0]) / TRIM_STEPS;
+        if (!(step > 0)) {
+            return;
+        }
+        final int low = quantize(transferFunction.calculate(range[0]), scale, zeroPoint);
+        final int high = quantize(transferFunction.calculate(range[1]), scale, zeroPoint);
+        int start = 0;
+        while (start < TRIM_STEPS
+                && quantize(transferFunction.calculate(range[0] + (start + 1) * step), scale, zeroPoint) == low) {
+            start++;
+        }
+        int end = TRIM_STEPS;
+        while (end > start
+                && quantize(transferFunction.calculate(range[0] + (end - 1) * step), scale, zeroPoint) == high) {
+            end--;
+        }
+        final double min = range[0];
+        range[0] = min + start * step;
+        range[1] = min + end * step;
+    }
+
+    private static long clamp(final long value, final long min, final long max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    private static int quantize(final double value, final double scale, final int zeroPoint) {
+        return (int) clamp(Math.round(value / scale) + zeroPoint, -128, 127);
+    }
+
+    /**
+     * Gets the scale of the inputs of the weights coming from a layer.
+     */
+    private double inputScale(final int layer) {
+        return layer == 0 ? inputScale : outputScales[layer - 1];
+    }
+
+    /**
+     * Measures the difference between the outputs of this model and of a
+     * reference.
+     *
+     * @return the mean and the largest absolute difference of each output
+     */
+    private double[] compare(final Predictor reference, final double[][] inputs) {
+        final double[] expected = new double[topology[topology.length - 1]];
+        final double[] actual = new double[expected.length];
+        double sum = 0;
+        double max = 0;
+        for (final double[] input : inputs) {
+            reference.predict(input, expected);
+            predict(input, actual);
+            for (int i = 0; i < expected.length; i++) {
+                final double error = Math.abs(actual[i] - expected[i]);
+                sum += error;
+                max = Math.max(max, error);
+            }
+        }
+        return new double[] { inputs.length > 0 ? sum / ((double) inputs.length * expected.length) : 0.0, max };
+    }
+
+    /**
+     * Measures the mean absolute difference between the outputs of this model
+     * and those of a network, such as the one it was quantized from.
+     *
+     * @param network the network to compare to
+     * @param inputs the input values to compare the outputs for
+     * @return the mean absolute difference of each output
+     */
+    public double measureError(final Network network, final double[][] inputs) {
+        return compare(new InferenceModel(network), inputs)[0];
+    }
+
+    /**
+     * Gets the mean absolute difference between the outputs of this model and
+     * of the original network on the calibration inputs. This is 0 for a model
+     * that was loaded from a file.
+     *
+     * @return the mean absolute difference of each output
+     */
+    public double getMeanError() {
+        return meanError;
+    }
+
+    /**
+     * Gets the largest absolute difference between an output of this model
+     * and of the original network on the calibration inputs. This is 0 for a
+     * model that was loaded from a file.
+     *
+     * @return the largest difference
+     */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Creates a new set of scratch buffers for this model.
+     *
+     * @return the new scratch buffers
+     */
+    public Scratch newScratch() {
+        return new Scratch(topology);
+    }
+
+    /**
+     * Calculates the outputs of the model using scratch buffers that are
+     * cached for the calling thread.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    @Override
+    public void predict(final double[] inputs, final double[] outputs) {
+        predict(inputs, outputs, scratch.get());
+    }
+
+    /**
+     * Calculates the outputs of the model using the specified scratch buffers.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     * @param scratch the scratch buffers to use, which must have been created
+     *        by {@link #newScratch()} on this model
+     */
+    public void predict(final double[] inputs, final double[] outputs, final Scratch scratch) {
+        final int outputLayer = topology.length - 1;
+        if (inputs.length != topology[0]) {
+            throw new IllegalArgumentException("inputs needs to be the same size as the input layer - bias");
+        }
+        if (outputs.length != topology[outputLayer]) {
+            throw new IllegalArgumentException("outputs needs to be the same size as the output layer - bias");
+        }
+
+        final byte[][] layers = scratch.outputs;
+        final byte[] quantizedInputs = layers[0];
+        for (int i = 0; i < inputs.length; i++) {
+            quantizedInputs[i] = (byte) quantize(inputs[i], inputScale, inputZeroPoint);
+        }
+
+        for (int l = 0; l < outputLayer; l++) {
+            final byte[] layerInputs = layers[l];
+            final byte[] layerWeights = weights[l];
+            final int[] layerOffsets = offsets[l];
+            final int size = topology[l];
+            if (l < outputLayer - 1) {
+                final byte[] layerOutputs = layers[l + 1];
+                final byte[] table = tables[l];
+                final long multiplier = multipliers[l];
+                final int shift = shifts[l];
+                final long round = 1L << (shift - 1);
+                final int zeroPoint = sumZeroPoints[l];
+                for (int j = 0, row = 0; j < topology[l + 1]; j++, row += size) {
+                    final int sum = dot(layerWeights, row, layerInputs, size, layerOffsets[j]);
+                    final long q = ((sum * multiplier + round) >> shift) + zeroPoint;
+                    layerOutputs[j] = table[(int) clamp(q, 0, TABLE_SIZE - 1)];
+                }
+            } else {
+                final double scale = weightScales[l] * inputScale(l);
+                for (int j = 0, row = 0; j < topology[l + 1]; j++, row += size) {
+                    final int sum = dot(layerWeights, row, layerInputs, size, layerOffsets[j]);
+                    outputs[j] = transferFunction.calculate(sum * scale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the integer dot product of a row of weights and the inputs.
+     */
+    private static int dot(final byte[] weights, final int row, final byte[] inputs, final int length,
+            final int offset) {
+        int sum = offset;
+        for (int i = 0; i < length; i++) {
+            sum += weights[row + i] * inputs[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the transfer function of the model.
+     *
+     * @return the transfer function
+     */
+    public TransferFunction getTransferFunction() {
+        return transferFunction;
+    }
+
+    @Override
+    public int[] getTopology() {
+        return topology.clone();
+    }
+
+    /**
+     * Writes the model to the specified file, replacing it if it exists. All
+     * values are little-endian. The file starts with the magic number "JNNQ",
+     * the format version, the number of layers, the size of each layer, the
+     * length and UTF-8 bytes of the name of the transfer function, and the
+     * scale (double) and zero point (int) of the inputs. For each layer except
+     * the last, it then holds the scale of its weights, the scales and zero
+     * points of the sums and outputs of the next layer, the bias of each
+     * neuron in the next layer as an int, and the weights as bytes, with one
+     * row per neuron in the next layer.
+     *
+     * @param file the file to write
+     *
+     * @throws IOException if there is a problem writing the file
+     */
+    public void save(final File file) throws IOException {
+        final byte[] name = transferFunction.toString().getBytes(StandardCharsets.UTF_8);
+        int size = 3 * Integer.BYTES + topology.length * Integer.BYTES + Short.BYTES + name.length + Double.BYTES
+                + Integer.BYTES;
+        for (int l = 0; l < weights.length; l++) {
+            size += 3 * Double.BYTES + 2 * Integer.BYTES + biases[l].length * Integer.BYTES + weights[l].length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(topology.length);
+        for (final int layer : topology) {
+            buffer.putInt(layer);
+        }
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putDouble(inputScale);
+        buffer.putInt(inputZeroPoint);
+        for (int l = 0; l < weights.length; l++) {
+            buffer.putDouble(weightScales[l]);
+            buffer.putDouble(sumScales[l]);
+            buffer.putInt(sumZeroPoints[l]);
+            buffer.putDouble(outputScales[l]);
+            buffer.putInt(outputZeroPoints[l]);
+            for (final int bias : biases[l]) {
+                buffer.putInt(bias);
+            }
+            buffer.put(weights[l]);
+        }
+        buffer.rewind();
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads a model from the specified file.
+     *
+     * @param file the file to read
+     * @return the model
+     *
+     * @throws IOException if there is a problem reading the file
+     * @throws FormatException if the file is not a valid quantized model file
+     */
+    public static QuantizedModel load(final File file) throws IOException, FormatException {
+        final ByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new FormatException("Quantized model file is too large.");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new FormatException("Not a quantized network file.");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new FormatException("Unsupported quantized format version: " + version);
+            }
+            // Check every size against the rest of the file before allocating
+            // anything for it, so a corrupt header cannot allocate huge arrays
+            final int layers = buffer.getInt();
+            if (layers < 2 || layers > buffer.remaining() / Integer.BYTES) {
+                throw new FormatException("Invalid topology.");
+            }
+            final int[] topology = new int[layers];
+            for (int l = 0; l < layers; l++) {
+                topology[l] = buffer.getInt();
+                if (topology[l] < 1) {
+                    throw new FormatException("Invalid topology.");
+                }
+            }
+            final byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            final TransferFunction transferFunction = TransferFunction
+                    .forName(new String(name, StandardCharsets.UTF_8));
+            if (transferFunction == null) {
+                throw new FormatException("Unrecognized transfer function.");
+            }
+
+            final double inputScale = buffer.getDouble();
+            final int inputZeroPoint = buffer.getInt();
+            final double[] weightScales = new double[layers - 1];
+            final double[] sumScales = new double[layers - 1];
+            final int[] sumZeroPoints = new int[layers - 1];
+            final double[] outputScales = new double[layers - 1];
+            final int[] outputZeroPoints = new int[layers - 1];
+            final byte[][] weights = new byte[layers - 1][];
+            final int[][] biases = new int[layers - 1][];
+            for (int l = 0; l < layers - 1; l++) {
+                weightScales[l] = buffer.getDouble();
+                sumScales[l] = buffer.getDouble();
+                sumZeroPoints[l] = buffer.getInt();
+                outputScales[l] = buffer.getDouble();
+                outputZeroPoints[l] = buffer.getInt();
+                final long layerBytes = (long) topology[l + 1] * Integer.BYTES
+                        + (long) topology[l + 1] * topology[l];
+                if (layerBytes > buffer.remaining()) {
+                    throw new FormatException("Wrong number of connection weights.");
+                }
+                biases[l] = new int[topology[l + 1]];
+                for (int j = 0; j < biases[l].length; j++) {
+                    biases[l][j] = buffer.getInt();
+                }
+                weights[l] = new byte[topology[l + 1] * topology[l]];
+                buffer.get(weights[l]);
+            }
+            if (buffer.hasRemaining()) {
+                throw new FormatException("Wrong number of connection weights.");
+            }
+            return new QuantizedModel(topology, transferFunction, inputScale, inputZeroPoint, weightScales,
+                    sumScales, sumZeroPoints, outputScales, outputZeroPoints, weights, biases);
+        } catch (final BufferUnderflowException e) {
+            throw new FormatException("Truncated quantized model file.");
+        }
+    }
+}
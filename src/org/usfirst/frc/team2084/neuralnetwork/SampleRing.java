@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of training samples between one producer thread and one
+ * consumer thread, which never locks or allocates. The samples are copied
+ * into arrays that are allocated up front, and each thread only writes its
+ * own position, which the other thread reads to tell how far it can go. Each
+ * thread also keeps its own copy of the other position, so it only has to
+ * read the shared one when the copy says the ring is full or empty.
+ *
+ * @author Ben Wolsieffer
+ */
+final class SampleRing {
+
+    private final int mask;
+    private final double[][] inputs;
+    private final double[][] targetOutputs;
+    /**
+     * The time each sample was added, from {@link System#nanoTime()}.
+     */
+    private final long[] times;
+
+    /**
+     * The position of the next sample to remove, which is only written by the
+     * consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The position of the next sample to add, which is only written by the
+     * producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The producer's copy of {@link #head}.
+     */
+    private long producerHead;
+    /**
+     * The consumer's copy of {@link #tail}.
+     */
+    private long consumerTail;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity the minimum number of samples the ring can hold, which
+     *        is rounded up to a power of two
+     * @param inputSize the number of inputs of each sample
+     * @param outputSize the number of target outputs of each sample
+     */
+    SampleRing(final int capacity, final int inputSize, final int outputSize) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30.");
+        }
+        final int size = Integer.highestOneBit(capacity * 2 - 1);
+        mask = size - 1;
+        inputs = new double[size][inputSize];
+        targetOutputs = new double[size][outputSize];
+        times = new long[size];
+    }
+
+    /**
+     * Adds a sample to the ring. This must only be called by the producer.
+     *
+     * @param sampleInputs the input values of the sample
+     * @param sampleTargetOutputs the target output values of the sample
+     * @param time the time the sample was taken
+     * @return true if the sample was added, or false if the ring is full
+     */
+    boolean offer(final double[] sampleInputs, final double[] sampleTargetOutputs, final long time) {
+        final long position = tail.get();
+        if (position - producerHead > mask) {
+            producerHead = head.get();
+            if (position - producerHead > mask) {
+                return false;
+            }
+        }
+        final int index = (int) position & mask;
+        System.arraycopy(sampleInputs, 0, inputs[index], 0, inputs[index].length);
+        System.arraycopy(sampleTargetOutputs, 0, targetOutputs[index], 0, targetOutputs[index].length);
+        times[index] = time;
+        // Publishes the sample to the consumer. This is a full volatile write,
+        // so a consumer that checks for samples after announcing that it is
+        // going to sleep cannot miss it.
+        tail.set(position + 1);
+        return true;
+    }
+
+    /**
+     * Gets the index of the oldest sample in the ring, which stays valid until
+     * it is removed with {@link #remove()}. This must only be called by the
+     * consumer.
+     *
+     * @return the index of the sample, or -1 if the ring is empty
+     */
+    int peek() {
+        final long position = head.get();
+        if (position >= consumerTail) {
+            consumerTail = tail.get();
+            if (position >= consumerTail) {
+                return -1;
+            }
+        }
+        return (int) position & mask;
+    }
+
+    /**
+     * Removes the oldest sample from the ring, so its slot can be reused by
+     * the producer. This must only be called by the consumer, after
+     * {@link #peek()} has returned a sample.
+     */
+    void remove() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Gets the number of samples in the ring. This is exact when called by
+     * the consumer, and may be out of date when called by any other thread.
+     *
+     * @return the number of samples
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Gets the input values of the sample at an index returned by
+     * {@link #peek()}.
+     */
+    double[] getInputs(final int index) {
+        return inputs[index];
+    }
+
+    /**
+     * Gets the target output values of the sample at an index returned by
+     * {@link #peek()}.
+     */
+    double[] getTargetOutputs(final int index) {
+        return targetOutputs[index];
+    }
+
+    /**
+     * Gets the time that the sample at an index returned by {@link #peek()}
+     * was added.
+     */
+    long getTime(final int index) {
+        return times[index];
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.usfirst.frc.team2084.neuralnetwork.Data.FormatException;
+
+/**
+ * Trains a {@link Network} for as many epochs as it takes to converge. Each
+ * epoch trains on every training sample once, and then the network is
+ * evaluated on the validation samples (or on the training error, if there are
+ * none). Training stops when the error reaches a target, when it stops
+ * improving for a number of epochs (a plateau), or when the maximum number of
+ * epochs is reached. The weights from the epoch with the lowest error can then
+ * be restored.
+ *
+ * Samples can either be held in memory or read from a
+ * {@link TrainingSource}. In memory samples are shuffled each epoch by
+ * permuting an array of indices, so the samples themselves are never copied,
+ * and a fraction of them can be held out for validation. Samples from a
+ * training source are used in the order the source returns them, and must
+ * have a separate source for validation.
+ *
+ * If the network has {@link TrainingMetrics}, each epoch is recorded in them.
+ *
+ * @author Ben Wolsieffer
+ */
+public class Trainer {
+
+    /**
+     * The reason that training stopped.
+     */
+    public static enum StopReason {
+        /**
+         * The maximum number of epochs was reached.
+         */
+        MAX_EPOCHS,
+        /**
+         * The error reached the target error.
+         */
+        TARGET_ERROR,
+        /**
+         * The error did not improve for the number of epochs set by
+         * {@link Trainer#setPatience(int)}.
+         */
+        PLATEAU
+    }
+
+    private final Network network;
+    /**
+     * The samples, if they are held in memory.
+     */
+    private final double[][] inputs;
+    private final double[][] targetOutputs;
+    /**
+     * The samples, if they are read from a source.
+     */
+    private final TrainingSource source;
+    private TrainingSource validationSource;
+    private ParallelTrainer parallelTrainer;
+    private Checkpointer checkpointer;
+
+    private int maxEpochs = 1000;
+    private int batchSize = 1;
+    private boolean shuffle = true;
+    private Random random = new Random();
+    private double validationFraction = 0;
+    private double targetError = 0;
+    private int patience = 0;
+    private double minImprovement = 0;
+    private boolean restoreBestWeights = true;
+
+    private int epochs;
+    private int bestEpoch;
+    private double bestError;
+    private double trainingError;
+    private double validationError = Double.NaN;
+    private StopReason stopReason;
+
+    /**
+     * Creates a trainer for a network and the samples that were read with it.
+     *
+     * @param data the network and its samples
+     */
+    public Trainer(final Data data) {
+        this(data.getNetwork(), data.getInputs(), data.getTargetOutputs());
+    }
+
+    /**
+     * Creates a trainer for a network using samples that are held in memory.
+     *
+     * @param network the network to train
+     * @param inputs the input values of each sample, formatted like
+     *        {@link Data#getInputs()}
+     * @param targetOutputs the target output values of each sample, formatted
+     *        like {@link Data#getTargetOutputs()}
+     */
+    public Trainer(final Network network, final double[][] inputs, final double[][] targetOutputs) {
+        if (inputs.length != targetOutputs.length) {
+            throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+        }
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException("There must be at least one sample.");
+        }
+        this.network = network;
+        this.inputs = inputs;
+        this.targetOutputs = targetOutputs;
+        source = null;
+    }
+
+    /**
+     * Creates a trainer for a network using samples that are read from a
+     * training source each epoch.
+     *
+     * @param network the network to train
+     * @param source the source of the training samples
+     */
+    public Trainer(final Network network, final TrainingSource source) {
+        checkSource(network, source);
+        this.network = network;
+        this.source = source;
+        inputs = null;
+        targetOutputs = null;
+    }
+
+    private static void checkSource(final Network network, final TrainingSource source) {
+        final int[] topology = network.getTopology();
+        if (source.getInputSize() != topology[0] || source.getOutputSize() != topology[topology.length - 1]) {
+            throw new IllegalArgumentException("The samples do not match the topology of the network.");
+        }
+    }
+
+    /**
+     * Trains the network until one of the stopping conditions is met. This
+     * can be called again to continue training, and the epoch count and best
+     * error are reset each time.
+     *
+     * @return the number of epochs that were trained
+     *
+     * @throws IOException if there is a problem reading the samples from a
+     *         training source
+     * @throws FormatException if the samples from a training source contain
+     *         an error
+     */
+    public int train() throws IOException, FormatException {
+        final int[] topology = network.getTopology();
+        final int outputSize = topology[topology.length - 1];
+        final TrainingMetrics metrics = network.getMetrics();
+
+        // Indices of the samples in memory, with the training samples first
+        // and the validation samples last
+        int[] indices = null;
+        int trainingCount = 0;
+        if (inputs != null) {
+            indices = new int[inputs.length];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = i;
+            }
+            if (shuffle) {
+                shuffle(indices, indices.length);
+            }
+            trainingCount = inputs.length - (int) Math.round(inputs.length * validationFraction);
+            if (trainingCount < 1) {
+                throw new IllegalStateException("The validation fraction leaves no training samples.");
+            }
+        }
+
+        // Each batch holds references to the samples, or copies of them if
+        // they are read from a source
+        final double[][] batchInputs = new double[batchSize][];
+        final double[][] batchTargetOutputs = new double[batchSize][];
+        if (source != null) {
+            for (int b = 0; b < batchSize; b++) {
+                batchInputs[b] = new double[topology[0]];
+                batchTargetOutputs[b] = new double[outputSize];
+            }
+        }
+        final double[] input = new double[topology[0]];
+        final double[] targetOutput = new double[outputSize];
+        final double[] output = new double[outputSize];
+
+        // The weights of the best epoch so far
+        final Network best = restoreBestWeights ? new Network(topology.clone(), network.getEta(),
+                network.getMomentum(), network.getTransferFunction(), network.getPrecision()) : null;
+
+        epochs = 0;
+        bestEpoch = 0;
+        bestError = Double.POSITIVE_INFINITY;
+        trainingError = Double.NaN;
+        validationError = Double.NaN;
+        stopReason = StopReason.MAX_EPOCHS;
+        int staleEpochs = 0;
+
+        while (epochs < maxEpochs) {
+            if (metrics != null) {
+                metrics.startEpoch();
+            }
+
+            double error = 0;
+            long samples = 0;
+            if (inputs != null) {
+                if (shuffle) {
+                    shuffle(indices, trainingCount);
+                }
+                for (int start = 0; start < trainingCount; start += batchSize) {
+                    final int count = Math.min(batchSize, trainingCount - start);
+                    for (int b = 0; b < count; b++) {
+                        batchInputs[b] = inputs[indices[start + b]];
+                        batchTargetOutputs[b] = targetOutputs[indices[start + b]];
+                    }
+                    error += trainBatch(batchInputs, batchTargetOutputs, count);
+                }
+                samples = trainingCount;
+            } else {
+                source.reset();
+                int count;
+                do {
+                    count = 0;
+                    while (count < batchSize && source.next(batchInputs[count], batchTargetOutputs[count])) {
+                        count++;
+                    }
+                    if (count > 0) {
+                        error += trainBatch(batchInputs, batchTargetOutputs, count);
+                        samples += count;
+                    }
+                } while (count == batchSize);
+            }
+            trainingError = samples > 0 ? error / samples : 0.0;
+            epochs++;
+
+            // Calculate the validation error
+            double monitoredError = trainingError;
+            if (inputs != null && trainingCount < inputs.length) {
+                double validation = 0;
+                for (int i = trainingCount; i < indices.length; i++) {
+                    validation += error(inputs[indices[i]], targetOutputs[indices[i]], output);
+                }
+                validationError = validation / (indices.length - trainingCount);
+                monitoredError = validationError;
+            } else if (validationSource != null) {
+                double validation = 0;
+                long validationSamples = 0;
+                validationSource.reset();
+                while (validationSource.next(input, targetOutput)) {
+                    validation += error(input, targetOutput, output);
+                    validationSamples++;
+                }
+                validationError = validationSamples > 0 ? validation / validationSamples : 0.0;
+                monitoredError = validationError;
+            }
+
+            if (metrics != null) {
+                metrics.endEpoch();
+            }
+
+            if (monitoredError < bestError - minImprovement) {
+                bestError = monitoredError;
+                bestEpoch = epochs;
+                staleEpochs = 0;
+                if (best != null) {
+                    best.copyWeights(network);
+                }
+            } else {
+                staleEpochs++;
+            }
+
+            if (monitoredError <= targetError) {
+                stopReason = StopReason.TARGET_ERROR;
+                break;
+            }
+            if (patience > 0 && staleEpochs >= patience) {
+                stopReason = StopReason.PLATEAU;
+                break;
+            }
+        }
+
+        if (best != null && bestEpoch > 0 && bestEpoch != epochs) {
+            network.copyWeights(best);
+        }
+        return epochs;
+    }
+
+    /**
+     * Trains the network on one batch.
+     *
+     * @param batchInputs the inputs of the batch
+     * @param batchTargetOutputs the target outputs of the batch
+     * @param count the number of samples in the batch
+     * @return the sum of the errors of the samples
+     */
+    private double trainBatch(final double[][] batchInputs, final double[][] batchTargetOutputs, final int count) {
+        final double error;
+        if (parallelTrainer != null) {
+            error = parallelTrainer.trainBatch(batchInputs, batchTargetOutputs, 0, count);
+        } else {
+            if (batchSize == 1) {
+                network.feedForward(batchInputs[0]);
+                network.backPropagation(batchTargetOutputs[0]);
+            } else {
+                network.trainBatch(batchInputs, batchTargetOutputs, 0, count);
+            }
+            error = network.getRecentAverageError() * count;
+        }
+        if (checkpointer != null) {
+            checkpointer.samplesTrained(count);
+        }
+        return error;
+    }
+
+    /**
+     * Calculates the error of the network for one sample, without training.
+     *
+     * @param input the input values
+     * @param targetOutput the target output values
+     * @param output a buffer for the output values
+     * @return the error
+     */
+    private double error(final double[] input, final double[] targetOutput, final double[] output) {
+        network.predict(input, output);
+        double error = 0;
+        for (int n = 0; n < output.length; n++) {
+            final double delta = targetOutput[n] - output[n];
+            error += delta * delta;
+        }
+        return error * 0.5;
+    }
+
+    /**
+     * Shuffles the first part of an array of indices.
+     *
+     * @param indices the indices
+     * @param count the number of indices to shuffle
+     */
+    private void shuffle(final int[] indices, final int count) {
+        for (int i = count - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int index = indices[i];
+            indices[i] = indices[j];
+            indices[j] = index;
+        }
+    }
+
+    /**
+     * Sets the maximum number of epochs to train for. The default is 1000.
+     *
+     * @param maxEpochs the maximum number of epochs
+     */
+    public void setMaxEpochs(final int maxEpochs) {
+        if (maxEpochs < 1) {
+            throw new IllegalArgumentException("maxEpochs must be positive.");
+        }
+        this.maxEpochs = maxEpochs;
+    }
+
+    public int getMaxEpochs() {
+        return maxEpochs;
+    }
+
+    /**
+     * Sets the number of samples in each batch. With a batch size of 1, which
+     * is the default, the network is trained with
+     * {@link Network#backPropagation(double...)} after each sample. Otherwise,
+     * it is trained with {@link Network#trainBatch(double[][], double[][])}.
+     *
+     * @param batchSize the number of samples in each batch
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the parallel trainer used to train each batch. It must have been
+     * created for the same network.
+     *
+     * @param parallelTrainer the parallel trainer, or null to train on the
+     *        calling thread
+     */
+    public void setParallelTrainer(final ParallelTrainer parallelTrainer) {
+        this.parallelTrainer = parallelTrainer;
+    }
+
+    public ParallelTrainer getParallelTrainer() {
+        return parallelTrainer;
+    }
+
+    /**
+     * Sets the checkpointer that is told about the samples trained after each
+     * batch, so it can take periodic checkpoints. It must have been created
+     * for the same network, and must not also be a listener of the metrics
+     * of the network, or every sample would be counted twice.
+     *
+     * @param checkpointer the checkpointer, or null to not take checkpoints
+     */
+    public void setCheckpointer(final Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * Sets whether the samples in memory are shuffled. If they are, the
+     * validation samples are chosen at random, and the training samples are
+     * used in a different order each epoch. Otherwise, the last samples are
+     * used for validation. This is enabled by default.
+     *
+     * @param shuffle true to shuffle the samples
+     */
+    public void setShuffle(final boolean shuffle) {
+        this.shuffle = shuffle;
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    /**
+     * Sets the random number generator used to shuffle the samples, which
+     * makes it possible to train reproducibly.
+     *
+     * @param random the random number generator
+     */
+    public void setRandom(final Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Sets the fraction of the samples in memory that are held out for
+     * validation instead of being trained on. The default is 0, which means
+     * the training error is used to detect convergence.
+     *
+     * @param validationFraction the fraction of samples to hold out, at least 0
+     *        and less than 1
+     */
+    public void setValidationFraction(final double validationFraction) {
+        if (!(validationFraction >= 0 && validationFraction < 1)) {
+            throw new IllegalArgumentException("validationFraction must be at least 0 and less than 1.");
+        }
+        if (inputs == null && validationFraction > 0) {
+            throw new IllegalStateException("A training source needs a separate validation source.");
+        }
+        this.validationFraction = validationFraction;
+    }
+
+    public double getValidationFraction() {
+        return validationFraction;
+    }
+
+    /**
+     * Sets the source of the validation samples, for a trainer that reads its
+     * training samples from a source.
+     *
+     * @param validationSource the validation source, or null to use the
+     *        training error to detect convergence
+     */
+    public void setValidationSource(final TrainingSource validationSource) {
+        if (validationSource != null) {
+            if (inputs != null) {
+                throw new IllegalStateException("Samples in memory are validated with a validation fraction.");
+            }
+            checkSource(network, validationSource);
+        }
+        this.validationSource = validationSource;
+    }
+
+    public TrainingSource getValidationSource() {
+        return validationSource;
+    }
+
+    /**
+     * Sets the error at which training stops. The default is 0, so training
+     * only stops at a plateau or the maximum number of epochs.
+     *
+     * @param targetError the target error
+     */
+    public void setTargetError(final double targetError) {
+        this.targetError = targetError;
+    }
+
+    public double getTargetError() {
+        return targetError;
+    }
+
+    /**
+     * Sets the number of epochs that the error can go without improving
+     * before training stops. The default is 0, which disables early stopping.
+     *
+     * @param patience the number of epochs, or 0 to disable early stopping
+     */
+    public void setPatience(final int patience) {
+        if (patience < 0) {
+            throw new IllegalArgumentException("patience must not be negative.");
+        }
+        this.patience = patience;
+    }
+
+    public int getPatience() {
+        return patience;
+    }
+
+    /**
+     * Sets the amount that the error must decrease by to count as an
+     * improvement. The default is 0.
+     *
+     * @param minImprovement the minimum improvement
+     */
+    public void setMinImprovement(final double minImprovement) {
+        this.minImprovement = minImprovement;
+    }
+
+    public double getMinImprovement() {
+        return minImprovement;
+    }
+
+    /**
+     * Sets whether the weights from the epoch with the lowest error are
+     * restored when training stops. This is enabled by default.
+     *
+     * @param restoreBestWeights true to restore the best weights
+     */
+    public void setRestoreBestWeights(final boolean restoreBestWeights) {
+        this.restoreBestWeights = restoreBestWeights;
+    }
+
+    public boolean isRestoreBestWeights() {
+        return restoreBestWeights;
+    }
+
+    /**
+     * Gets the number of epochs trained by the last call to {@link #train()}.
+     *
+     * @return the number of epochs
+     */
+    public int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * Gets the epoch with the lowest error in the last call to
+     * {@link #train()}, starting from 1.
+     *
+     * @return the best epoch
+     */
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * Gets the lowest error in the last call to {@link #train()}. This is the
+     * validation error if there are validation samples, or the training error
+     * otherwise.
+     *
+     * @return the lowest error
+     */
+    public double getBestError() {
+        return bestError;
+    }
+
+    /**
+     * Gets the average training error of the last epoch, as calculated before
+     * each update.
+     *
+     * @return the training error
+     */
+    public double getTrainingError() {
+        return trainingError;
+    }
+
+    /**
+     * Gets the average validation error after the last epoch.
+     *
+     * @return the validation error, or NaN if there are no validation samples
+     */
+    public double getValidationError() {
+        return validationError;
+    }
+
+    /**
+     * Gets the reason that the last call to {@link #train()} stopped.
+     *
+     * @return the reason
+     */
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+}
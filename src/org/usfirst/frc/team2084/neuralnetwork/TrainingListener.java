@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+/**
+ * Receives a notification at the end of each training epoch, which can be
+ * used to log progress or export the {@link TrainingMetrics} to a monitoring
+ * system. Listeners are called on the thread that ends the epoch, and should
+ * return quickly because training does not continue until they do.
+ *
+ * @author Ben Wolsieffer
+ */
+public interface TrainingListener {
+
+    /**
+     * Called when an epoch is completed.
+     *
+     * @param metrics the metrics of the network, which hold the statistics of
+     *        the epoch that was just completed
+     */
+    public void epochCompleted(TrainingMetrics metrics);
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics about the training of a {@link Network}, such as the
+ * time spent in each layer, the loss and the throughput of each epoch. Metrics
+ * are only collected while they are attached to a network with
+ * {@link Network#setMetrics(TrainingMetrics)}. A network without metrics only
+ * pays for a null check per layer.
+ *
+ * The network records layer timings and losses by itself. Epochs are marked
+ * by {@link #startEpoch()} and {@link #endEpoch()}, which
+ * {@link ParallelTrainer} calls automatically, and which can be called around
+ * a hand-written training loop. At the end of each epoch, every
+ * {@link TrainingListener} is notified.
+ *
+ * Layer timings can be recorded from any number of threads at once. Times
+ * measured on several threads at once (such as by a {@link ParallelTrainer})
+ * are added together, so they measure CPU time spent rather than elapsed time.
+ *
+ * @author Ben Wolsieffer
+ */
+public class TrainingMetrics {
+
+    /**
+     * The default number of loss records that the windowed loss is averaged
+     * over.
+     */
+    public static final int DEFAULT_WINDOW = 100;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final LongAdder[] forwardNanos;
+    private final LongAdder[] backwardNanos;
+    private final LongAdder[] updateNanos;
+
+    /**
+     * Sum of the loss of every sample, and the number of samples.
+     */
+    private double lossSum;
+    private long samples;
+
+    /**
+     * The loss sums and sample counts of the most recent records, in a
+     * circular buffer.
+     */
+    private final double[] windowLosses;
+    private final long[] windowSamples;
+    private int windowIndex;
+
+    private final List<TrainingListener> listeners = new CopyOnWriteArrayList<>();
+
+    private int epochs;
+    private long epochStartTime;
+    private long epochStartSamples;
+    private long epochStartAllocatedBytes;
+    private boolean epochRunning;
+    private long epochNanos;
+    private long epochSamples;
+    private long epochAllocatedBytes = -1;
+
+    /**
+     * Creates metrics for a network with the specified number of layers, with
+     * the default loss window.
+     *
+     * @param layers the number of layers in the network
+     */
+    public TrainingMetrics(final int layers) {
+        this(layers, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates metrics for a network with the specified number of layers.
+     *
+     * @param layers the number of layers in the network
+     * @param window the number of loss records to average the windowed loss
+     *        over
+     */
+    public TrainingMetrics(final int layers, final int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive.");
+        }
+        forwardNanos = newCounters(layers);
+        backwardNanos = newCounters(layers);
+        updateNanos = newCounters(layers);
+        windowLosses = new double[window];
+        windowSamples = new long[window];
+    }
+
+    private static LongAdder[] newCounters(final int layers) {
+        final LongAdder[] counters = new LongAdder[layers];
+        for (int l = 0; l < layers; l++) {
+            counters[l] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Adds a listener that is notified at the end of each epoch.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(final TrainingListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener that was added with
+     * {@link #addListener(TrainingListener)}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(final TrainingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records time spent calculating the outputs of a layer.
+     *
+     * @param layer the index of the layer
+     * @param nanos the time in nanoseconds
+     */
+    void recordForward(final int layer, final long nanos) {
+        forwardNanos[layer].add(nanos);
+    }
+
+    /**
+     * Records time spent calculating the gradients of a layer.
+     *
+     * @param layer the index of the layer
+     * @param nanos the time in nanoseconds
+     */
+    void recordBackward(final int layer, final long nanos) {
+        backwardNanos[layer].add(nanos);
+    }
+
+    /**
+     * Records time spent updating the weights coming into a layer.
+     *
+     * @param layer the index of the layer
+     * @param nanos the time in nanoseconds
+     */
+    void recordUpdate(final int layer, final long nanos) {
+        updateNanos[layer].add(nanos);
+    }
+
+    /**
+     * Records the loss of one or more samples that were trained on together.
+     *
+     * @param loss the sum of the losses of the samples
+     * @param count the number of samples
+     */
+    synchronized void recordLoss(final double loss, final int count) {
+        lossSum += loss;
+        samples += count;
+        windowLosses[windowIndex] = loss;
+        windowSamples[windowIndex] = count;
+        windowIndex = (windowIndex + 1) % windowLosses.length;
+    }
+
+    /**
+     * Marks the start of an epoch.
+     */
+    public synchronized void startEpoch() {
+        epochRunning = true;
+        epochStartSamples = samples;
+        epochStartAllocatedBytes = allocatedBytes();
+        epochStartTime = System.nanoTime();
+    }
+
+    /**
+     * Marks the end of an epoch that was started with {@link #startEpoch()},
+     * and notifies the listeners.
+     */
+    public void endEpoch() {
+        synchronized (this) {
+            if (!epochRunning) {
+                throw new IllegalStateException("No epoch was started.");
+            }
+            epochNanos = System.nanoTime() - epochStartTime;
+            final long allocated = allocatedBytes();
+            epochAllocatedBytes = allocated >= 0 && epochStartAllocatedBytes >= 0
+                    ? allocated - epochStartAllocatedBytes : -1;
+            epochSamples = samples - epochStartSamples;
+            epochRunning = false;
+            epochs++;
+        }
+        for (final TrainingListener listener : listeners) {
+            listener.epochCompleted(this);
+        }
+    }
+
+    /**
+     * Gets the number of bytes that the current thread has allocated.
+     *
+     * @return the number of bytes, or -1 if the JVM cannot measure it
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Clears all of the metrics, but not the listeners.
+     */
+    public synchronized void reset() {
+        for (int l = 0; l < forwardNanos.length; l++) {
+            forwardNanos[l].reset();
+            backwardNanos[l].reset();
+            updateNanos[l].reset();
+        }
+        lossSum = 0;
+        samples = 0;
+        for (int i = 0; i < windowLosses.length; i++) {
+            windowLosses[i] = 0;
+            windowSamples[i] = 0;
+        }
+        windowIndex = 0;
+        epochs = 0;
+        epochRunning = false;
+        epochNanos = 0;
+        epochSamples = 0;
+        epochAllocatedBytes = -1;
+    }
+
+    /**
+     * Gets the number of layers these metrics were created for.
+     *
+     * @return the number of layers
+     */
+    public int getLayerCount() {
+        return forwardNanos.length;
+    }
+
+    /**
+     * Gets the total time spent calculating the outputs of a layer from the
+     * previous one.
+     *
+     * @param layer the index of the layer
+     * @return the time in nanoseconds
+     */
+    public long getForwardNanos(final int layer) {
+        return forwardNanos[layer].sum();
+    }
+
+    /**
+     * Gets the total time spent calculating the gradients of a layer. For
+     * mini-batch training, this includes summing the weight gradients of the
+     * connections coming into the layer.
+     *
+     * @param layer the index of the layer
+     * @return the time in nanoseconds
+     */
+    public long getBackwardNanos(final int layer) {
+        return backwardNanos[layer].sum();
+    }
+
+    /**
+     * Gets the total time spent updating the weights of the connections
+     * coming into a layer.
+     *
+     * @param layer the index of the layer
+     * @return the time in nanoseconds
+     */
+    public long getUpdateNanos(final int layer) {
+        return updateNanos[layer].sum();
+    }
+
+    /**
+     * Gets the total number of samples trained on.
+     *
+     * @return the number of samples
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Gets the mean loss of every sample trained on.
+     *
+     * @return the mean loss, or 0 if there have not been any samples
+     */
+    public synchronized double getMeanLoss() {
+        return samples > 0 ? lossSum / samples : 0.0;
+    }
+
+    /**
+     * Gets the mean loss of the samples in the most recent loss records. Each
+     * call to {@link Network#backPropagation(double...)} makes one record,
+     * and so does each batch of mini-batch training.
+     *
+     * @return the mean loss, or 0 if there have not been any samples
+     */
+    public synchronized double getWindowLoss() {
+        double loss = 0;
+        long count = 0;
+        for (int i = 0; i < windowLosses.length; i++) {
+            loss += windowLosses[i];
+            count += windowSamples[i];
+        }
+        return count > 0 ? loss / count : 0.0;
+    }
+
+    /**
+     * Gets the number of epochs that have been completed.
+     *
+     * @return the number of epochs
+     */
+    public synchronized int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * Gets the wall time of the last completed epoch.
+     *
+     * @return the time in nanoseconds
+     */
+    public synchronized long getEpochNanos() {
+        return epochNanos;
+    }
+
+    /**
+     * Gets the number of samples trained on in the last completed epoch.
+     *
+     * @return the number of samples
+     */
+    public synchronized long getEpochSamples() {
+        return epochSamples;
+    }
+
+    /**
+     * Gets the throughput of the last completed epoch.
+     *
+     * @return the number of samples per second
+     */
+    public synchronized double getSamplesPerSecond() {
+        return epochNanos > 0 ? epochSamples * 1e9 / epochNanos : 0.0;
+    }
+
+    /**
+     * Gets the number of bytes allocated during the last completed epoch by
+     * the thread that started and ended it. Allocations by the threads of a
+     * pool are not included.
+     *
+     * @return the number of bytes, or -1 if the JVM cannot measure it
+     */
+    public synchronized long getEpochAllocatedBytes() {
+        return epochAllocatedBytes;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+import org.usfirst.frc.team2084.neuralnetwork.Data.FormatException;
+
+/**
+ * A source of training samples that are read one at a time, so that a trainer
+ * never needs the whole data set in memory. Each pass through the samples is
+ * one epoch, and {@link #reset()} starts the next one.
+ *
+ * @author Ben Wolsieffer
+ */
+public interface TrainingSource extends Closeable {
+
+    /**
+     * Gets the number of input values in each sample.
+     *
+     * @return the input size
+     */
+    public int getInputSize();
+
+    /**
+     * Gets the number of target output values in each sample.
+     *
+     * @return the output size
+     */
+    public int getOutputSize();
+
+    /**
+     * Reads the next sample of the epoch.
+     *
+     * @param input the array to store the input values in
+     * @param targetOutput the array to store the target output values in
+     * @return true if a sample was read, or false if the epoch is over
+     *
+     * @throws IOException if there is a problem reading the samples
+     * @throws FormatException if the samples contain an error
+     */
+    public boolean next(double[] input, double[] targetOutput) throws IOException, FormatException;
+
+    /**
+     * Starts a new epoch from the first sample.
+     *
+     * @throws IOException if there is a problem rewinding the samples
+     */
+    public void reset() throws IOException;
+
+    /**
+     * A training source backed by arrays that are already in memory, such as
+     * the ones returned by {@link Data#getInputs()} and
+     * {@link Data#getTargetOutputs()}.
+     */
+    public static class InMemory implements TrainingSource {
+
+        private final double[][] inputs;
+        private final double[][] targetOutputs;
+        private int index = 0;
+
+        public InMemory(final double[][] inputs, final double[][] targetOutputs) {
+            if (inputs.length != targetOutputs.length) {
+                throw new IllegalArgumentException("inputs and targetOutputs lengths do not match.");
+            }
+            if (inputs.length == 0) {
+                throw new IllegalArgumentException("There must be at least one sample.");
+            }
+            this.inputs = inputs;
+            this.targetOutputs = targetOutputs;
+        }
+
+        public InMemory(final Data data) {
+            this(data.getInputs(), data.getTargetOutputs());
+        }
+
+        @Override
+        public int getInputSize() {
+            return inputs[0].length;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return targetOutputs[0].length;
+        }
+
+        @Override
+        public boolean next(final double[] input, final double[] targetOutput) {
+            if (index >= inputs.length) {
+                return false;
+            }
+            System.arraycopy(inputs[index], 0, input, 0, input.length);
+            System.arraycopy(targetOutputs[index], 0, targetOutput, 0, targetOutput.length);
+            index++;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            index = 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A training source that lazily reads the {@code in:} and {@code out:}
+     * lines of a network data file (see {@link Data}). Only a fixed size read
+     * buffer and an optional shuffle buffer are kept in memory, so the file can
+     * be much larger than the heap. Every {@code in:} line must be followed by its
+     * {@code out:} line, which is how {@link Data#save(File)} writes them. All
+     * other labels are ignored.
+     *
+     * If a shuffle buffer is used, samples are read into it until it is full,
+     * and then each sample returned is picked at random from the buffer and
+     * replaced with the next one from the file. This only shuffles samples
+     * within a window the size of the buffer, but it never needs more memory
+     * than that.
+     */
+    public static class TextFile implements TrainingSource {
+
+        private final File file;
+        private final int inputSize;
+        private final int outputSize;
+        private final Random random;
+
+        private final double[][] bufferInputs;
+        private final double[][] bufferTargetOutputs;
+        private int bufferCount;
+
+        private DataReader data;
+        /**
+         * Set when the end of the file has been reached in this epoch.
+         */
+        private boolean endOfFile;
+
+        /**
+         * Creates a training source that reads the samples of a file in order.
+         *
+         * @param file the file to read
+         * @param inputSize the number of inputs in each sample
+         * @param outputSize the number of target outputs in each sample
+         *
+         * @throws IOException if the file cannot be opened
+         */
+        public TextFile(final File file, final int inputSize, final int outputSize) throws IOException {
+            this(file, inputSize, outputSize, 0, null);
+        }
+
+        /**
+         * Creates a training source that shuffles the samples of a file within
+         * a buffer of the specified size.
+         *
+         * @param file the file to read
+         * @param inputSize the number of inputs in each sample
+         * @param outputSize the number of target outputs in each sample
+         * @param shuffleBufferSize the number of samples to shuffle at once, or
+         *        0 to read the samples in order
+         * @param random the random number generator used to shuffle
+         *
+         * @throws IOException if the file cannot be opened
+         */
+        public TextFile(final File file, final int inputSize, final int outputSize, final int shuffleBufferSize,
+                final Random random) throws IOException {
+            if (shuffleBufferSize > 0 && random == null) {
+                throw new IllegalArgumentException("A random number generator is needed to shuffle.");
+            }
+            this.file = file;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.random = random;
+            bufferInputs = new double[shuffleBufferSize][inputSize];
+            bufferTargetOutputs = new double[shuffleBufferSize][outputSize];
+            reset();
+        }
+
+        @Override
+        public int getInputSize() {
+            return inputSize;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return outputSize;
+        }
+
+        @Override
+        public boolean next(final double[] input, final double[] targetOutput) throws IOException, FormatException {
+            try {
+                return nextShuffled(input, targetOutput);
+            } catch (final UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private boolean nextShuffled(final double[] input, final double[] targetOutput) throws FormatException {
+            if (bufferInputs.length == 0) {
+                return read(input, targetOutput);
+            }
+
+            // Fill the buffer at the start of the epoch
+            while (bufferCount < bufferInputs.length
+                    && read(bufferInputs[bufferCount], bufferTargetOutputs[bufferCount])) {
+                bufferCount++;
+            }
+            if (bufferCount == 0) {
+                return false;
+            }
+
+            final int index = random.nextInt(bufferCount);
+            System.arraycopy(bufferInputs[index], 0, input, 0, inputSize);
+            System.arraycopy(bufferTargetOutputs[index], 0, targetOutput, 0, outputSize);
+
+            // Replace the sample with the next one from the file, or with the
+            // last one in the buffer if there are no more
+            if (!read(bufferInputs[index], bufferTargetOutputs[index])) {
+                bufferCount--;
+                final double[] lastInput = bufferInputs[bufferCount];
+                bufferInputs[bufferCount] = bufferInputs[index];
+                bufferInputs[index] = lastInput;
+                final double[] lastTargetOutput = bufferTargetOutputs[bufferCount];
+                bufferTargetOutputs[bufferCount] = bufferTargetOutputs[index];
+                bufferTargetOutputs[index] = lastTargetOutput;
+            }
+            return true;
+        }
+
+        /**
+         * Reads the next sample from the file.
+         *
+         * @param input the array to store the input values in
+         * @param targetOutput the array to store the target output values in
+         * @return true if a sample was read, or false if the end of the file
+         *         was reached
+         *
+         * @throws FormatException if the sample contains an error
+         */
+        private boolean read(final double[] input, final double[] targetOutput) throws FormatException {
+            boolean inputRead = false;
+            while (!endOfFile) {
+                if (!data.hasNextLine()) {
+                    endOfFile = true;
+                    break;
+                }
+                final String label = data.findLabel();
+                if (label != null) {
+                    switch (label) {
+                    case "in":
+                        if (inputRead) {
+                            throw new FormatException("Training inputs must be followed by target outputs.");
+                        }
+                        readValues(input, "training inputs");
+                        inputRead = true;
+                    break;
+                    case "out":
+                        if (!inputRead) {
+                            throw new FormatException("Target outputs must follow training inputs.");
+                        }
+                        readValues(targetOutput, "target outputs");
+                        data.nextLine();
+                        return true;
+                    default:
+                        // Ignore everything that is not a sample
+                    }
+                }
+                data.nextLine();
+            }
+            if (inputRead) {
+                throw new FormatException("Mismatched input output data samples.");
+            }
+            return false;
+        }
+
+        /**
+         * Reads the values on the rest of the current line.
+         *
+         * @param values the array to store the values in
+         * @param name the name of the values, for error messages
+         *
+         * @throws FormatException if there are too few values
+         */
+        private void readValues(final double[] values, final String name) throws FormatException {
+            int i;
+            for (i = 0; data.hasNextDouble(); i++) {
+                final double value = data.nextDouble();
+                // Extra values are ignored, like in Data
+                if (i < values.length) {
+                    values[i] = value;
+                }
+            }
+            if (i < values.length) {
+                throw new FormatException("Too few " + name + ".");
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            close();
+            data = new DataReader(new FileInputStream(file), "in", "out");
+            endOfFile = false;
+            bufferCount = 0;
+        }
+
+        @Override
+        public void close() {
+            if (data != null) {
+                data.close();
+                data = null;
+            }
+        }
+    }
+}
@@ -15,6 +15,51 @@ public interface TransferFunction {
 
     public double derivative(double x);
 
+    /**
+     * Calculates the derivative at x when the output at x is already known.
+     * Most transfer functions have a derivative that is a simple function of
+     * their output, so this lets back-propagation reuse the outputs of the
+     * forward pass instead of evaluating the function again. By default, this
+     * just calls {@link #derivative(double)}.
+     * 
+     * @param x the input of the function
+     * @param y the output of the function at x, as returned by
+     *        {@link #calculate(double)}
+     * @return the derivative at x
+     */
+    public default double derivative(double x, double y) {
+        return derivative(x);
+    }
+
+    /**
+     * Gets the transfer function with the specified name. The names are the
+     * same ones returned by {@link #toString()} and used in the network data
+     * format.
+     * 
+     * @param name the name of the transfer function
+     * @return the transfer function, or null if the name is not recognized
+     */
+    public static TransferFunction forName(String name) {
+        switch (name) {
+        case "sig":
+            return new Sigmoid();
+        case "tanh":
+            return new HyperbolicTangent();
+        case "step":
+            return new Step();
+        case "sig_fast":
+            return new FastSigmoid();
+        case "tanh_fast":
+            return new FastHyperbolicTangent();
+        case "sig_lut":
+            return new LookupSigmoid();
+        case "tanh_lut":
+            return new LookupHyperbolicTangent();
+        default:
+            return null;
+        }
+    }
+
     public static class Sigmoid implements TransferFunction {
 
         @Override
@@ -28,6 +73,18 @@ public interface TransferFunction {
             return expnegx / Math.pow((1 + expnegx), 2);
         }
 
+        /**
+         * Calculates the derivative as y * (1 - y), which avoids calling
+         * {@link Math#exp(double)} again. This is not bit-identical to
+         * {@link #derivative(double)}: it differs in the last bits for about
+         * two thirds of inputs, by up to 1e-7 relative error where 1 - y loses
+         * precision.
+         */
+        @Override
+        public double derivative(double x, double y) {
+            return y * (1.0 - y);
+        }
+
         @Override
         public String toString() {
             return "sig";
@@ -46,6 +103,11 @@ public interface TransferFunction {
             return 1.0;
         }
 
+        @Override
+        public double derivative(double x, double y) {
+            return 1.0;
+        }
+
         @Override
         public String toString() {
             return "step";
@@ -65,9 +127,159 @@ public interface TransferFunction {
             return 1.0 - tanhx * tanhx;
         }
 
+        @Override
+        public double derivative(double x, double y) {
+            return 1.0 - y * y;
+        }
+
         @Override
         public String toString() {
             return "tanh";
         }
     }
+
+    /**
+     * An approximation of {@link HyperbolicTangent} using a rational function
+     * (the [9/8] Pade approximant, from the continued fraction of tanh),
+     * which is clamped to &plusmn;1 above |x| = 6.3. This avoids calling
+     * {@link Math#tanh(double)}. The maximum absolute error is 7e-6. The
+     * derivative is calculated from the approximate output, so it is just as
+     * cheap.
+     */
+    public static class FastHyperbolicTangent implements TransferFunction {
+
+        /**
+         * Above this, the approximation is worse than just returning 1.
+         */
+        private static final double CLAMP = 6.3;
+
+        /**
+         * Calculates the approximation of tanh(x), which is shared with
+         * {@link FastSigmoid}.
+         */
+        static double tanh(double x) {
+            if (x >= CLAMP) {
+                return 1.0;
+            }
+            if (x <= -CLAMP) {
+                return -1.0;
+            }
+            double x2 = x * x;
+            return x * (34459425 + x2 * (4729725 + x2 * (135135 + x2 * (990 + x2))))
+                    / (34459425 + x2 * (16216200 + x2 * (945945 + x2 * (13860 + x2 * 45))));
+        }
+
+        @Override
+        public double calculate(double x) {
+            return tanh(x);
+        }
+
+        @Override
+        public double derivative(double x) {
+            double tanhx = tanh(x);
+            return 1.0 - tanhx * tanhx;
+        }
+
+        @Override
+        public double derivative(double x, double y) {
+            return 1.0 - y * y;
+        }
+
+        @Override
+        public String toString() {
+            return "tanh_fast";
+        }
+    }
+
+    /**
+     * An approximation of {@link Sigmoid} using the identity sig(x) = (1 +
+     * tanh(x / 2)) / 2 and the rational approximation of tanh from
+     * {@link FastHyperbolicTangent}. This avoids calling
+     * {@link Math#exp(double)}. The maximum absolute error is 3.5e-6.
+     */
+    public static class FastSigmoid implements TransferFunction {
+
+        @Override
+        public double calculate(double x) {
+            return 0.5 + 0.5 * FastHyperbolicTangent.tanh(0.5 * x);
+        }
+
+        @Override
+        public double derivative(double x) {
+            double sigx = calculate(x);
+            return sigx * (1.0 - sigx);
+        }
+
+        @Override
+        public double derivative(double x, double y) {
+            return y * (1.0 - y);
+        }
+
+        @Override
+        public String toString() {
+            return "sig_fast";
+        }
+    }
+
+    /**
+     * An approximation of {@link HyperbolicTangent} using linear interpolation
+     * in a table of 4096 intervals between -8 and 8. The maximum absolute
+     * error is 1.5e-6.
+     */
+    public static class LookupHyperbolicTangent implements TransferFunction {
+
+        private static final LookupTable table = new LookupTable(Math::tanh, -8, 8, 4096);
+
+        @Override
+        public double calculate(double x) {
+            return table.get(x);
+        }
+
+        @Override
+        public double derivative(double x) {
+            double tanhx = table.get(x);
+            return 1.0 - tanhx * tanhx;
+        }
+
+        @Override
+        public double derivative(double x, double y) {
+            return 1.0 - y * y;
+        }
+
+        @Override
+        public String toString() {
+            return "tanh_lut";
+        }
+    }
+
+    /**
+     * An approximation of {@link Sigmoid} using linear interpolation in a
+     * table of 4096 intervals between -16 and 16. The maximum absolute error
+     * is 7.5e-7.
+     */
+    public static class LookupSigmoid implements TransferFunction {
+
+        private static final LookupTable table = new LookupTable(x -> 1 / (1 + Math.exp(-x)), -16, 16, 4096);
+
+        @Override
+        public double calculate(double x) {
+            return table.get(x);
+        }
+
+        @Override
+        public double derivative(double x) {
+            double sigx = table.get(x);
+            return sigx * (1.0 - sigx);
+        }
+
+        @Override
+        public double derivative(double x, double y) {
+            return y * (1.0 - y);
+        }
+
+        @Override
+        public String toString() {
+            return "sig_lut";
+        }
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015 RobotsByTheC. All rights reserved.
+ *
+ * Open Source Software - may be modified and shared by FRC teams. The code must
+ * be accompanied by the BSD license file in the root directory of the project.
+ */
+package org.usfirst.frc.team2084.neuralnetwork;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves predictions from a consistent copy of the weights of a
+ * {@link Network} while the network is being trained on another thread. The
+ * weights are double-buffered: the training thread copies them into the back
+ * buffer with {@link #publish()}, then swaps it with the front buffer in a
+ * single write, so a prediction always sees every weight from the same
+ * publication and never a half-updated layer.
+ *
+ * Predictions are lock-free: they never wait for the publishing thread, but
+ * one may have to start over if a publication happens at the same moment.
+ * Each one announces itself
+ * in one of two reader counters, chosen by which publication it started
+ * after, and only the publishing thread ever waits: before overwriting the
+ * back buffer, it waits for the predictions that started before the previous
+ * publication, which are the only ones that can still be reading it. Since
+ * those have had a whole training interval to finish, the publishing thread
+ * almost never has to wait, and publishing does not allocate anything. If a
+ * publication switches the counters between a prediction choosing one and
+ * announcing itself in it, the prediction would be counted with the wrong
+ * publication, so it checks for this and starts over.
+ *
+ * Any number of threads can call {@link #predict(double[], double[])} at
+ * once. {@link #publish()} must be called on the thread that trains the
+ * network, or while nothing is training it.
+ *
+ * @author Ben Wolsieffer
+ */
+public final class WeightPublisher implements Predictor {
+
+    /**
+     * How long the publishing thread sleeps between checks for predictions
+     * that are still using the back buffer.
+     */
+    private static final long WAIT_NANOS = 1000;
+
+    private final Network network;
+    private final int[] topology;
+
+    /**
+     * The buffer that predictions use.
+     */
+    private volatile InferenceModel front;
+    /**
+     * The buffer that the next publication is copied into.
+     */
+    private InferenceModel back;
+
+    /**
+     * The number of predictions in progress that started after an even or odd
+     * number of publications.
+     */
+    private final AtomicInteger[] readers = { new AtomicInteger(), new AtomicInteger() };
+    /**
+     * The index of the reader counter that new predictions use.
+     */
+    private volatile int readerIndex;
+
+    private volatile long publishedVersion;
+    private long publications;
+
+    /**
+     * Scratch buffers for each thread that calls
+     * {@link #predict(double[], double[])} without providing its own.
+     */
+    private final ThreadLocal<InferenceModel.Scratch> scratch = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * Creates a publisher for the specified network and publishes its current
+     * weights.
+     *
+     * @param network the network to publish the weights of
+     */
+    public WeightPublisher(final Network network) {
+        this.network = network;
+        topology = network.getTopology().clone();
+        publishedVersion = network.getWeightVersion();
+        front = new InferenceModel(network);
+        back = new InferenceModel(network);
+    }
+
+    /**
+     * Publishes the current weights of the network, so they are used by every
+     * prediction that starts afterwards. Nothing is copied if the weights have
+     * not changed since they were last published.
+     *
+     * @return true if the weights were published, or false if they had not
+     *         changed
+     */
+    public synchronized boolean publish() {
+        final long version = network.getWeightVersion();
+        if (version == publishedVersion) {
+            return false;
+        }
+
+        // Wait for the predictions that might still be using the back buffer,
+        // which are counted by the counter that is not in use. Sleeping instead
+        // of yielding lets a reader that was preempted in the middle of a
+        // prediction finish when there are more threads than cores.
+        final AtomicInteger previousReaders = readers[readerIndex ^ 1];
+        while (previousReaders.get() != 0) {
+            LockSupport.parkNanos(this, WAIT_NANOS);
+        }
+
+        back.copyWeights(network);
+        final InferenceModel published = back;
+        back = front;
+        front = published;
+        publishedVersion = version;
+        // Predictions that read the old front buffer all started before this,
+        // so the next publication only has to wait for this counter
+        readerIndex ^= 1;
+        publications++;
+        return true;
+    }
+
+    /**
+     * Creates a new set of scratch buffers for this publisher.
+     *
+     * @return the new scratch buffers
+     */
+    public InferenceModel.Scratch newScratch() {
+        return front.newScratch();
+    }
+
+    /**
+     * Calculates the outputs of the most recently published weights using
+     * scratch buffers that are cached for the calling thread.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     */
+    @Override
+    public void predict(final double[] inputs, final double[] outputs) {
+        predict(inputs, outputs, scratch.get());
+    }
+
+    /**
+     * Calculates the outputs of the most recently published weights using the
+     * specified scratch buffers.
+     *
+     * @param inputs the input values, the same size as the input layer
+     * @param outputs the array to store the output values in, the same size as
+     *        the output layer
+     * @param scratch the scratch buffers to use, which must have been created
+     *        by {@link #newScratch()} on this publisher
+     */
+    public void predict(final double[] inputs, final double[] outputs, final InferenceModel.Scratch scratch) {
+        int index;
+        do {
+            index = getReaderIndex();
+        } while (!register(index));
+        try {
+            front.predict(inputs, outputs, scratch);
+        } finally {
+            unregister(index);
+        }
+    }
+
+    /**
+     * Gets the index of the reader counter that new predictions use.
+     *
+     * @return the index of the reader counter
+     */
+    int getReaderIndex() {
+        return readerIndex;
+    }
+
+    /**
+     * Announces a prediction in a reader counter, which was chosen with
+     * {@link #getReaderIndex()}. If a publication switched the counters in
+     * between, the publication after it would not wait for this prediction,
+     * so the prediction is not registered and has to choose again.
+     *
+     * @param index the index of the reader counter
+     * @return true if the prediction was registered and must be unregistered
+     *         with {@link #unregister(int)} when it is done, or false if the
+     *         counters were switched
+     */
+    boolean register(final int index) {
+        final AtomicInteger counter = readers[index];
+        counter.incrementAndGet();
+        if (readerIndex != index) {
+            counter.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Announces that a prediction that was registered with
+     * {@link #register(int)} is done.
+     *
+     * @param index the index of the reader counter
+     */
+    void unregister(final int index) {
+        readers[index].decrementAndGet();
+    }
+
+    /**
+     * Gets the weight version of the network when its weights were last
+     * published.
+     *
+     * @return the published weight version
+     * @see Network#getWeightVersion()
+     */
+    public long getPublishedVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Gets the number of times the weights have been published, not counting
+     * the initial copy.
+     *
+     * @return the number of publications
+     */
+    public synchronized long getPublications() {
+        return publications;
+    }
+
+    /**
+     * Gets the network that the weights are published from.
+     *
+     * @return the network
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * Gets the topology of the network in the form of an int[], with each
+     * element containing the size of a layer.
+     *
+     * @return a copy of the topology of the network
+     */
+    @Override
+    public int[] getTopology() {
+        return topology.clone();
+    }
+}